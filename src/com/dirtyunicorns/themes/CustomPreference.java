@@ -21,7 +21,7 @@ import android.util.AttributeSet;
 
 import androidx.preference.Preference;
 
-import com.android.internal.util.du.Utils;
+import com.dirtyunicorns.themes.utils.OverlayState;
 
 public class CustomPreference extends Preference {
 
@@ -46,11 +46,12 @@ public class CustomPreference extends Preference {
     }
 
     private void setResources() {
-        if (Utils.isThemeEnabled("com.android.theme.icon_pack.filled.android")) {
+        OverlayState overlayState = OverlayState.get(getContext());
+        if (overlayState.isEnabled("com.android.theme.icon_pack.filled.android")) {
             setLayoutResource(R.layout.themes_main_filled);
-        } else if (Utils.isThemeEnabled("com.android.theme.icon_pack.rounded.android")) {
+        } else if (overlayState.isEnabled("com.android.theme.icon_pack.rounded.android")) {
             setLayoutResource(R.layout.themes_main_rounded);
-        } else if (Utils.isThemeEnabled("com.android.theme.icon_pack.circular.android")) {
+        } else if (overlayState.isEnabled("com.android.theme.icon_pack.circular.android")) {
             setLayoutResource(R.layout.themes_main_circular);
         } else {
             setLayoutResource(R.layout.themes_main);
@@ -30,6 +30,7 @@ import android.widget.RelativeLayout;
 import androidx.preference.PreferenceManager;
 
 import com.android.internal.util.du.ThemesUtils;
+import com.dirtyunicorns.themes.utils.OverlayCatalog;
 
 public class NavbarPicker extends DialogFragment {
 
@@ -82,11 +83,28 @@ public class NavbarPicker extends DialogFragment {
 
     private void initView() {
         for (int i = 0; i < mNavbarLayouts.length; i++) {
-            int layoutId = getResources().getIdentifier(mNavbarLayouts[i], "id", mContext.getPackageName());
-            RelativeLayout layout = (RelativeLayout) mView.findViewById(layoutId);
-            String overlay = ThemesUtils.NAVBAR_STYLES[i];
-            setNavbarStyle(overlay, layout);
+            setNavbarStyle(ThemesUtils.NAVBAR_STYLES[i], getNavbarLayout(i));
         }
+        // Styles whose overlay isn't installed are hidden once the catalog is ready
+        OverlayCatalog.refresh(mContext, new OverlayCatalog.Callback() {
+            @Override
+            public void onReady(OverlayCatalog catalog) {
+                if (!isAdded()) {
+                    return;
+                }
+                for (int i = 0; i < mNavbarLayouts.length; i++) {
+                    RelativeLayout layout = getNavbarLayout(i);
+                    if (layout != null && !catalog.isAvailable(ThemesUtils.NAVBAR_STYLES[i])) {
+                        layout.setVisibility(View.GONE);
+                    }
+                }
+            }
+        });
+    }
+
+    private RelativeLayout getNavbarLayout(int index) {
+        int layoutId = getResources().getIdentifier(mNavbarLayouts[index], "id", mContext.getPackageName());
+        return (RelativeLayout) mView.findViewById(layoutId);
     }
 
     private void setNavbarStyle(final String overlay, final RelativeLayout layout) {
@@ -18,11 +18,10 @@ package com.dirtyunicorns.themes;
 
 import android.app.ActionBar;
 import android.app.Activity;
+import android.app.AlarmManager;
 import android.app.TimePickerDialog;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.pm.PackageManager;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -32,17 +31,22 @@ import android.widget.TimePicker;
 
 import androidx.preference.DropDownPreference;
 import androidx.preference.ListPreference;
+import androidx.preference.MultiSelectListPreference;
+import androidx.preference.Preference;
 import androidx.preference.PreferenceFragment;
 import androidx.preference.PreferenceManager;
 import androidx.preference.SwitchPreference;
 
-import com.dirtyunicorns.themes.receivers.ThemesEndReceiver;
-import com.dirtyunicorns.themes.receivers.ThemesStartReceiver;
+import com.dirtyunicorns.themes.utils.ThemeBackup;
+import com.dirtyunicorns.themes.utils.ThemeSchedule;
+import com.dirtyunicorns.themes.utils.ThemeScheduler;
 
 import java.text.DateFormat;
+import java.text.DateFormatSymbols;
 import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
 
-import static com.dirtyunicorns.themes.utils.Utils.clearAlarms;
 import static com.dirtyunicorns.themes.utils.Utils.getScheduledEndTheme;
 import static com.dirtyunicorns.themes.utils.Utils.getScheduledEndThemeSummary;
 import static com.dirtyunicorns.themes.utils.Utils.getScheduledEndThemeTime;
@@ -52,10 +56,6 @@ import static com.dirtyunicorns.themes.utils.Utils.getScheduledStartThemeSummary
 import static com.dirtyunicorns.themes.utils.Utils.getScheduledStartThemeTime;
 import static com.dirtyunicorns.themes.utils.Utils.getScheduledStartThemeValue;
 import static com.dirtyunicorns.themes.utils.Utils.getThemeSchedule;
-import static com.dirtyunicorns.themes.utils.Utils.setEndAlarm;
-import static com.dirtyunicorns.themes.utils.Utils.setEndTime;
-import static com.dirtyunicorns.themes.utils.Utils.setStartAlarm;
-import static com.dirtyunicorns.themes.utils.Utils.setStartTime;
 
 public class Schedule extends Activity {
 
@@ -76,6 +76,7 @@ public class Schedule extends Activity {
         public static final String PREF_THEME_SCHEDULED_END_THEME_VALUE = "scheduled_end_theme_value";
         public static final String PREF_THEME_SCHEDULED_END_TIME = "theme_schedule_end_time";
         public static final String PREF_THEME_SCHEDULED_REPEAT_DAILY = "theme_schedule_repeat_daily";
+        public static final String PREF_THEME_SCHEDULED_DAYS = "theme_schedule_days";
         public static final String PREF_ALARM_START_TIME = "theme_scheduled_start_time";
         public static final String PREF_ALARM_END_TIME = "theme_scheduled_end_time";
         public static final String PREF_THEME_SCHEDULED_TOAST = "theme_schedule_toast";
@@ -83,7 +84,6 @@ public class Schedule extends Activity {
         private Calendar mStartDate, mEndDate;
         private Context mContext;
         private DateFormat timeFormat;
-        private PackageManager mPm;
         private SharedPreferences mSharedPreferences;
         private SharedPreferences.Editor sharedPreferencesEditor;
 
@@ -91,6 +91,7 @@ public class Schedule extends Activity {
         private ListPreference mThemeScheduledStartTheme;
         private ListPreference mThemeScheduledEndTheme;
         private SwitchPreference mThemeScheduleRepeat;
+        private MultiSelectListPreference mThemeScheduleDays;
         private SwitchPreference mThemeScheduleToast;
 
         private boolean scheduledStartTheme = false;
@@ -114,7 +115,6 @@ public class Schedule extends Activity {
             // Alarm receiver
             mEndDate = Calendar.getInstance();
             mStartDate = Calendar.getInstance();
-            mPm = mContext.getPackageManager();
 
             // Time format
             timeFormat = android.text.format.DateFormat.getTimeFormat(mContext);
@@ -131,15 +131,62 @@ public class Schedule extends Activity {
             mThemeScheduleRepeat = (SwitchPreference) findPreference(PREF_THEME_SCHEDULED_REPEAT_DAILY);
             mThemeScheduleToast = (SwitchPreference) findPreference(PREF_THEME_SCHEDULED_TOAST);
 
+            // Schedule days
+            mThemeScheduleDays = (MultiSelectListPreference) findPreference(PREF_THEME_SCHEDULED_DAYS);
+            String[] weekdays = DateFormatSymbols.getInstance().getWeekdays();
+            CharSequence[] dayEntries = new CharSequence[7];
+            CharSequence[] dayValues = new CharSequence[7];
+            Set<String> everyDay = new HashSet<>();
+            for (int i = 0; i < 7; i++) {
+                dayEntries[i] = weekdays[Calendar.SUNDAY + i];
+                dayValues[i] = String.valueOf(Calendar.SUNDAY + i);
+                everyDay.add(dayValues[i].toString());
+            }
+            mThemeScheduleDays.setEntries(dayEntries);
+            mThemeScheduleDays.setEntryValues(dayValues);
+            if (mThemeScheduleDays.getValues().isEmpty()) {
+                mThemeScheduleDays.setValues(everyDay);
+            }
+            updateDaysSummary(getDaysMask(mThemeScheduleDays.getValues()));
+            mThemeScheduleDays.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    int days = getDaysMask((Set<String>) newValue);
+                    if (days == 0) {
+                        return false;
+                    }
+                    // A one-off schedule always runs every day
+                    ThemeSchedule schedule = ThemeSchedule.load(mContext);
+                    if (!schedule.isEmpty() && mThemeScheduleRepeat.isChecked()) {
+                        ThemeScheduler.save(mContext, schedule.withDays(days));
+                        if (schedule.size() > 1) {
+                            ThemeScheduler.catchUp(mContext, null);
+                        }
+                    }
+                    updateDaysSummary(days);
+                    return true;
+                }
+            });
+
             updateThemeSchedule();
+            updateDaysVisibility();
         }
 
         @Override
         public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, String key) {
+            if (key.equals(PREF_THEME_SCHEDULED_REPEAT_DAILY)) {
+                updateDaysVisibility();
+            }
+            if (key.equals(PREF_THEME_SCHEDULED_TOAST)
+                    || key.equals(PREF_THEME_SCHEDULED_REPEAT_DAILY)) {
+                // Only called for a value that actually changed
+                ThemeBackup.dataChanged(mContext);
+            }
             if (key.equals(PREF_THEME_SCHEDULE)) {
                 switch (getThemeSchedule(mSharedPreferences)) {
                     case "1":
-                        clearAlarms(mContext);
+                        ThemeScheduler.clear(mContext);
                         sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_THEME_VALUE);
                         sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_THEME);
                         sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_TIME);
@@ -152,6 +199,7 @@ public class Schedule extends Activity {
                         sharedPreferencesEditor.remove(PREF_ALARM_END_TIME);
                         sharedPreferencesEditor.commit();
                         mThemeScheduleRepeat.setVisible(false);
+                        mThemeScheduleDays.setVisible(false);
                         mThemeScheduleToast.setVisible(false);
                         mThemeScheduledStartTheme.setVisible(false);
                         mThemeScheduledEndTheme.setVisible(false);
@@ -160,6 +208,7 @@ public class Schedule extends Activity {
                     case "2":
                         mThemeScheduleRepeat.setVisible(true);
                         mThemeScheduleRepeat.setEnabled(true);
+                        updateDaysVisibility();
                         mThemeScheduleToast.setVisible(true);
                         mThemeScheduleToast.setEnabled(true);
                         mThemeScheduledStartTheme.setVisible(true);
@@ -196,6 +245,8 @@ public class Schedule extends Activity {
                     scheduledStartTheme = true;
                     mThemeScheduledStartTheme.setEnabled(false);
                 } else {
+                    removeTransition(getScheduledStartThemeValue(mSharedPreferences),
+                            PREF_ALARM_START_TIME);
                     sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_THEME_VALUE);
                     sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_THEME);
                     sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_TIME);
@@ -234,6 +285,8 @@ public class Schedule extends Activity {
                     new ScheduledEndTheme().execute();
                     scheduledEndTheme = true;
                 } else {
+                    removeTransition(getScheduledEndThemeValue(mSharedPreferences),
+                            PREF_ALARM_END_TIME);
                     sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_END_THEME_VALUE);
                     sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_END_THEME);
                     sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_END_TIME);
@@ -290,7 +343,7 @@ public class Schedule extends Activity {
             }
 
             if (getScheduledStartTheme(mSharedPreferences) == null && getScheduledEndTheme(mSharedPreferences) == null) {
-                clearAlarms(mContext);
+                ThemeScheduler.clear(mContext);
                 sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_THEME_VALUE);
                 sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_THEME);
                 sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_TIME);
@@ -303,6 +356,7 @@ public class Schedule extends Activity {
                 sharedPreferencesEditor.remove(PREF_ALARM_END_TIME);
                 sharedPreferencesEditor.commit();
                 mThemeScheduleRepeat.setVisible(false);
+                mThemeScheduleDays.setVisible(false);
                 mThemeScheduleToast.setVisible(false);
                 mThemeScheduledStartTheme.setVisible(false);
                 mThemeScheduledEndTheme.setVisible(false);
@@ -359,6 +413,76 @@ public class Schedule extends Activity {
             mThemeSchedule.setSummary(mThemeSchedule.getEntry());
         }
 
+        /**
+         * Removes the start or end transition. Start and end may go to the
+         * same theme, so it is found by its time as well.
+         */
+        private void removeTransition(String theme, String timeKey) {
+            if (theme == null) {
+                return;
+            }
+            long time = mSharedPreferences.getLong(timeKey, 0);
+            ThemeSchedule schedule = ThemeSchedule.load(mContext);
+            ThemeScheduler.save(mContext, time != 0
+                    ? schedule.withoutTransition(ThemeSchedule.getMinuteOfDay(time), theme)
+                    : schedule.withoutTheme(theme));
+        }
+
+        /**
+         * A schedule that doesn't repeat runs through each transition once.
+         */
+        private long getScheduleUntil() {
+            return mThemeScheduleRepeat.isChecked() ? 0
+                    : System.currentTimeMillis() + AlarmManager.INTERVAL_DAY;
+        }
+
+        /**
+         * Only a repeating schedule is limited to days, a one-off runs
+         * through the next day whatever it is.
+         */
+        private int getScheduleDays() {
+            return mThemeScheduleRepeat.isChecked()
+                    ? getDaysMask(mThemeScheduleDays.getValues()) : ThemeSchedule.EVERY_DAY;
+        }
+
+        /**
+         * Days only apply to a repeating schedule.
+         */
+        private void updateDaysVisibility() {
+            mThemeScheduleDays.setVisible(mThemeScheduleRepeat.isVisible()
+                    && mThemeScheduleRepeat.isChecked());
+        }
+
+        private int getDaysMask(Set<String> values) {
+            int days = 0;
+            for (String value : values) {
+                days |= ThemeSchedule.dayBit(Integer.parseInt(value));
+            }
+            return days;
+        }
+
+        private void updateDaysSummary(int days) {
+            if (days == ThemeSchedule.EVERY_DAY) {
+                mThemeScheduleDays.setSummary(R.string.theme_schedule_days_every_day);
+            } else if (days == ThemeSchedule.WEEKDAYS) {
+                mThemeScheduleDays.setSummary(R.string.theme_schedule_days_weekdays);
+            } else if (days == ThemeSchedule.WEEKEND) {
+                mThemeScheduleDays.setSummary(R.string.theme_schedule_days_weekend);
+            } else {
+                StringBuilder summary = new StringBuilder();
+                String[] weekdays = DateFormatSymbols.getInstance().getShortWeekdays();
+                for (int day = Calendar.SUNDAY; day <= Calendar.SATURDAY; day++) {
+                    if ((days & ThemeSchedule.dayBit(day)) != 0) {
+                        if (summary.length() > 0) {
+                            summary.append(", ");
+                        }
+                        summary.append(weekdays[day]);
+                    }
+                }
+                mThemeScheduleDays.setSummary(summary);
+            }
+        }
+
         private void clearAll() {
             sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_THEME_VALUE);
             sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_THEME);
@@ -372,6 +496,7 @@ public class Schedule extends Activity {
             sharedPreferencesEditor.remove(PREF_ALARM_END_TIME);
             sharedPreferencesEditor.commit();
             mThemeScheduleRepeat.setVisible(false);
+            mThemeScheduleDays.setVisible(false);
             mThemeScheduleToast.setVisible(false);
             mThemeScheduledStartTheme.setVisible(false);
             mThemeScheduledEndTheme.setVisible(false);
@@ -387,16 +512,17 @@ public class Schedule extends Activity {
                     mStartDate.set(Calendar.HOUR_OF_DAY, hourOfDay);
                     mStartDate.set(Calendar.MINUTE, minute);
                     scheduledThemeStatus = 1;
-                    setStartTime(mContext, mStartDate);
-                    setStartAlarm(mContext);
-                    ComponentName mStartReceiver = new ComponentName(mContext, ThemesStartReceiver.class);
-                    mPm.setComponentEnabledSetting(mStartReceiver, PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
-                            PackageManager.DONT_KILL_APP);
+                    // The start theme always begins a new schedule
+                    ThemeScheduler.save(mContext, ThemeSchedule.EMPTY
+                            .withTransition(hourOfDay * 60 + minute,
+                                    getScheduledStartThemeValue(mSharedPreferences), getScheduleDays())
+                            .withUntil(getScheduleUntil()));
                     if (mThemeScheduledStartTheme != null) {
                         mThemeScheduledStartTheme.setTitle(getScheduledStartThemeSummary(mSharedPreferences, mContext)
                                 + " " + mContext.getString(R.string.theme_schedule_start_scheduled));
                         mThemeScheduledStartTheme.setSummary(timeFormat.format(mStartDate.getTime()));
-                        sharedPreferencesEditor.putString(PREF_THEME_SCHEDULED_START_TIME, timeFormat.format(mStartDate.getTime())).commit();
+                        sharedPreferencesEditor.putString(PREF_THEME_SCHEDULED_START_TIME, timeFormat.format(mStartDate.getTime()));
+                        sharedPreferencesEditor.putLong(PREF_ALARM_START_TIME, mStartDate.getTimeInMillis()).commit();
                         mThemeScheduledStartTheme.setEnabled(false);
                         mThemeScheduledEndTheme.setVisible(true);
                         mThemeScheduledEndTheme.setEnabled(true);
@@ -409,7 +535,7 @@ public class Schedule extends Activity {
                 @Override
                 public void onCancel(DialogInterface dialog) {
                     scheduledThemeStatus = 2;
-                    clearAlarms(mContext);
+                    ThemeScheduler.clear(mContext);
                     clearAll();
                 }
             });
@@ -417,7 +543,7 @@ public class Schedule extends Activity {
                 @Override
                 public void onDismiss(DialogInterface dialog) {
                     if (scheduledThemeStatus == 0) {
-                        clearAlarms(mContext);
+                        ThemeScheduler.clear(mContext);
                         clearAll();
                     }
                 }
@@ -432,16 +558,18 @@ public class Schedule extends Activity {
                     mEndDate.set(Calendar.HOUR_OF_DAY, hourOfDay);
                     mEndDate.set(Calendar.MINUTE, minute);
                     scheduledThemeStatus = 1;
-                    setEndTime(mContext, mEndDate);
-                    setEndAlarm(mContext);
-                    ComponentName mEndReceiver = new ComponentName(mContext, ThemesEndReceiver.class);
-                    mPm.setComponentEnabledSetting(mEndReceiver, PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
-                            PackageManager.DONT_KILL_APP);
+                    ThemeScheduler.save(mContext, ThemeSchedule.load(mContext)
+                            .withTransition(hourOfDay * 60 + minute,
+                                    getScheduledEndThemeValue(mSharedPreferences), getScheduleDays())
+                            .withUntil(getScheduleUntil()));
+                    // The schedule is complete, start it in the theme due now
+                    ThemeScheduler.catchUp(mContext, null);
                     if (mThemeScheduledEndTheme != null) {
                         mThemeScheduledEndTheme.setTitle(getScheduledEndThemeSummary(mSharedPreferences, mContext)
                                 + " " + mContext.getString(R.string.theme_schedule_start_scheduled));
                         mThemeScheduledEndTheme.setSummary(timeFormat.format(mEndDate.getTime()));
-                        sharedPreferencesEditor.putString(PREF_THEME_SCHEDULED_END_TIME, timeFormat.format(mEndDate.getTime())).commit();
+                        sharedPreferencesEditor.putString(PREF_THEME_SCHEDULED_END_TIME, timeFormat.format(mEndDate.getTime()));
+                        sharedPreferencesEditor.putLong(PREF_ALARM_END_TIME, mEndDate.getTimeInMillis()).commit();
                         mThemeScheduledStartTheme.setEnabled(false);
                         mThemeScheduledEndTheme.setEnabled(false);
                         mThemeScheduleRepeat.setEnabled(false);
@@ -453,7 +581,7 @@ public class Schedule extends Activity {
                 @Override
                 public void onCancel(DialogInterface dialog) {
                     scheduledThemeStatus = 2;
-                    clearAlarms(mContext);
+                    ThemeScheduler.clear(mContext);
                     clearAll();
                 }
             });
@@ -461,7 +589,7 @@ public class Schedule extends Activity {
                 @Override
                 public void onDismiss(DialogInterface dialog) {
                     if (scheduledThemeStatus == 0) {
-                        clearAlarms(mContext);
+                        ThemeScheduler.clear(mContext);
                         clearAll();
                     }
                 }
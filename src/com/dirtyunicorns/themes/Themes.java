@@ -17,15 +17,17 @@
 package com.dirtyunicorns.themes;
 
 import static android.os.UserHandle.USER_SYSTEM;
+import static com.dirtyunicorns.themes.Schedule.PREF_THEME_SCHEDULED_START_THEME;
+import static com.dirtyunicorns.themes.Schedule.PREF_THEME_SCHEDULED_START_TIME;
 import static com.dirtyunicorns.themes.utils.Utils.getScheduledStartThemeSummary;
 import static com.dirtyunicorns.themes.utils.Utils.getScheduledStartThemeTime;
 import static com.dirtyunicorns.themes.utils.Utils.getThemeSchedule;
-import static com.dirtyunicorns.themes.utils.Utils.handleBackgrounds;
-import static com.dirtyunicorns.themes.utils.Utils.handleOverlays;
 import static com.dirtyunicorns.themes.utils.Utils.isLiveWallpaper;
+import static com.dirtyunicorns.themes.utils.Utils.queueTheme;
 import static com.dirtyunicorns.themes.utils.Utils.threeButtonNavbarEnabled;
 
 import android.app.ActionBar;
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.DialogFragment;
 import android.app.Fragment;
@@ -37,33 +39,61 @@ import android.content.ContentResolver;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.om.IOverlayManager;
+import android.content.pm.UserInfo;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.graphics.drawable.Drawable;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.UserHandle;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.View;
+import android.widget.EditText;
 import android.widget.Toast;
 
 import androidx.preference.ListPreference;
+import androidx.preference.MultiSelectListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragment;
 import androidx.preference.PreferenceManager;
 import androidx.preference.PreferenceScreen;
 
 import com.android.internal.util.du.ThemesUtils;
-import com.android.internal.util.du.Utils;
 import com.dirtyunicorns.support.colorpicker.ColorPickerPreference;
-
+import com.dirtyunicorns.themes.utils.OverlayApplyQueue;
+import com.dirtyunicorns.themes.utils.OverlayCatalog;
+import com.dirtyunicorns.themes.utils.OverlayCategory;
+import com.dirtyunicorns.themes.utils.OverlayState;
+import com.dirtyunicorns.themes.utils.OverlayTransaction;
+import com.dirtyunicorns.themes.utils.ThemeArbiter;
+import com.dirtyunicorns.themes.utils.ThemeBackup;
+import com.dirtyunicorns.themes.utils.ThemeConfig;
+import com.dirtyunicorns.themes.utils.ThemeHistory;
+import com.dirtyunicorns.themes.utils.ThemeJournal;
+import com.dirtyunicorns.themes.utils.ThemePlan;
+import com.dirtyunicorns.themes.utils.ThemeProfileCodec;
+import com.dirtyunicorns.themes.utils.ThemeProfiles;
+import com.dirtyunicorns.themes.utils.ThemeReset;
+import com.dirtyunicorns.themes.utils.ThemeUsers;
+import com.dirtyunicorns.themes.utils.ThemeWatcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 import static com.dirtyunicorns.themes.utils.Utils.isLiveWallpaper;
 
@@ -74,21 +104,26 @@ public class Themes extends PreferenceFragment {
     private static final String PREF_WP_PREVIEW = "wp_preview";
     private static final String PREF_THEME_SCHEDULE = "theme_schedule";
     private static final String PREF_THEME_NAVBAR_PICKER = "theme_navbar_picker";
-    private static final String PREF_QS_HEADER_STYLE = "qs_header_style";
-    private static final String PREF_SWITCH_STYLE = "switch_style";
-    private static final String PREF_TILE_STYLE = "qs_tile_style";
+    private static final String STAGED_SCOPE = "staged";
+
+    private static final int REQUEST_EXPORT_PROFILES = 1;
+    private static final int REQUEST_IMPORT_PROFILES = 2;
+    private static final String PROFILES_MIME_TYPE = "application/octet-stream";
 
     public static final String PREF_THEME_NAVBAR_STYLE = "theme_navbar_style";
     public static final String PREF_ADAPTIVE_ICON_SHAPE = "adapative_icon_shape";
     public static final String PREF_FONT_PICKER = "font_picker";
     public static final String PREF_STATUSBAR_ICONS = "statusbar_icons";
     public static final String PREF_THEME_SWITCH = "theme_switch";
+    public static final String PREF_QS_HEADER_STYLE = "qs_header_style";
+    public static final String PREF_SWITCH_STYLE = "switch_style";
+    public static final String PREF_TILE_STYLE = "qs_tile_style";
+    public static final String PREF_ROUNDED_CORNER = "rounded_ui";
+    public static final String PREF_SB_HEIGHT = "statusbar_height";
+    public static final String PREF_THEME_USERS = "theme_apply_users";
 
     private static final String ACCENT_COLOR = "accent_color";
-    static final int DEFAULT_ACCENT_COLOR = 0xff1a73e8;
-
-    private static final String PREF_ROUNDED_CORNER = "rounded_ui";
-    private static final String PREF_SB_HEIGHT = "statusbar_height";
+    public static final int DEFAULT_ACCENT_COLOR = 0xff1a73e8;
 
     private static boolean mUseSharedPrefListener;
     private String[] mNavbarName;
@@ -109,6 +144,15 @@ public class Themes extends PreferenceFragment {
     private ListPreference mSbHeight;
     private Preference mNavbarPicker;
     private Preference mThemeSchedule;
+    private MultiSelectListPreference mThemeUsers;
+
+    private final ArrayMap<String, CategoryHandler> mCategoryHandlers = new ArrayMap<>();
+    private final ArrayMap<OverlayCategory, String> mStaged = new ArrayMap<>();
+    private boolean mStaging;
+    private boolean mRestoring;
+    private ThemeConfig mConfig;
+    private ThemeWatcher mWatcher;
+    private int mWallpaperId = -1;
     private Preference mWpPreview;
     private ColorPickerPreference mAccentColor;
 
@@ -131,12 +175,23 @@ public class Themes extends PreferenceFragment {
         // Shared preferences
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
         mSharedPreferences.registerOnSharedPreferenceChangeListener(mSharedPrefListener);
+        mSharedPreferences.registerOnSharedPreferenceChangeListener(mScheduleListener);
 
         // Theme services
         mUiModeManager = getContext().getSystemService(UiModeManager.class);
         mOverlayManager = IOverlayManager.Stub.asInterface(
                 ServiceManager.getService(Context.OVERLAY_SERVICE));
 
+        // Finish a theme switch that was cut short
+        ThemeJournal.recover(mContext);
+
+        // Undo history
+        mConfig = ThemeConfig.capture(mContext);
+        ThemeHistory.get().record(mConfig);
+
+        // Changes made by other components while the screen is open
+        mWatcher = new ThemeWatcher(mContext, mWatcherListener);
+
         // Navbar summary
         mNavbarName = getResources().getStringArray(R.array.navbar_name);
 
@@ -177,6 +232,12 @@ public class Themes extends PreferenceFragment {
         }
 
         // Navbar
+        registerCategory(OverlayCategory.NAVBAR_STYLE, mNavbarPicker, new Runnable() {
+            @Override
+            public void run() {
+                updateNavbarSummary();
+            }
+        });
         String navbarName = getOverlayName(ThemesUtils.NAVBAR_STYLES);
         if (navbarName != null) {
             mSharedPreferences.edit().putString("theme_navbar_style", navbarName).apply();
@@ -184,68 +245,47 @@ public class Themes extends PreferenceFragment {
 
         // Themes
         mThemeSwitch = (ListPreference) findPreference(PREF_THEME_SWITCH);
-        if (Utils.isThemeEnabled("com.android.theme.corvusclear.system")) {
-            mThemeSwitch.setValue("9");
-        } else if (Utils.isThemeEnabled("com.android.theme.materialocean.system")) {
-            mThemeSwitch.setValue("8");
-        } else if (Utils.isThemeEnabled("com.android.theme.darkgrey.system")) {
-            mThemeSwitch.setValue("7");
-        } else if (Utils.isThemeEnabled("com.android.theme.bakedgreen.system")) {
-            mThemeSwitch.setValue("6");
-        } else if (Utils.isThemeEnabled("com.android.theme.chocox.system")) {
-            mThemeSwitch.setValue("5");
-        } else if (Utils.isThemeEnabled("com.android.theme.solarizeddark.system")) {
-            mThemeSwitch.setValue("4");
-        } else if (Utils.isThemeEnabled("com.android.theme.pitchblack.system")) {
-            mThemeSwitch.setValue("3");
-        } else if (mUiModeManager != null) {
-            if (mUiModeManager.getNightMode() == UiModeManager.MODE_NIGHT_YES) {
-                mThemeSwitch.setValue("2");
-            } else {
-                mThemeSwitch.setValue("1");
-            }
-        }
+        mThemeSwitch.setValue(ThemePlan.match(OverlayState.get(mContext),
+                mUiModeManager != null ? mUiModeManager.getNightMode()
+                        : UiModeManager.MODE_NIGHT_NO).getId());
         mThemeSwitch.setSummary(mThemeSwitch.getEntry());
 
-	// Rounded UI
-        mRoundedUi = (ListPreference) findPreference(PREF_ROUNDED_CORNER);
-        int roundedValue = getOverlayPosition(ThemesUtils.UI_RADIUS);
-        if (roundedValue != -1) {
-            mRoundedUi.setValue(String.valueOf(roundedValue + 2));
+        // Other users and profiles
+        mThemeUsers = (MultiSelectListPreference) findPreference(PREF_THEME_USERS);
+        List<UserInfo> otherUsers = ThemeUsers.getOtherUsers(mContext);
+        if (otherUsers.isEmpty()) {
+            prefSet.removePreference(mThemeUsers);
+            mThemeUsers = null;
         } else {
-            mRoundedUi.setValue("1");
+            CharSequence[] userNames = new CharSequence[otherUsers.size()];
+            CharSequence[] userIds = new CharSequence[otherUsers.size()];
+            for (int i = 0; i < userNames.length; i++) {
+                userNames[i] = otherUsers.get(i).name;
+                userIds[i] = String.valueOf(otherUsers.get(i).id);
+            }
+            mThemeUsers.setEntries(userNames);
+            mThemeUsers.setEntryValues(userIds);
+            updateThemeUsersSummary(mThemeUsers.getValues());
+            mThemeUsers.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                @Override
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    updateThemeUsersSummary((Set<String>) newValue);
+                    return true;
+                }
+            });
         }
-        mRoundedUi.setSummary(mRoundedUi.getEntry());
 
-	// Statusbar Height
-	mSbHeight = (ListPreference) findPreference(PREF_SB_HEIGHT);
-        int sbHeightValue = getOverlayPosition(ThemesUtils.STATUSBAR_HEIGHT);
-        if (sbHeightValue != -1) {
-            mSbHeight.setValue(String.valueOf(sbHeightValue + 2));
-        } else {
-            mSbHeight.setValue("1");
-        }
-        mSbHeight.setSummary(mSbHeight.getEntry());
+        // Rounded UI
+        mRoundedUi = registerListCategory(OverlayCategory.ROUNDED_CORNER);
+
+        // Statusbar height
+        mSbHeight = registerListCategory(OverlayCategory.STATUSBAR_HEIGHT);
 
         // Font picker
-        mFontPicker = (ListPreference) findPreference(PREF_FONT_PICKER);
-        int fontPickerValue = getOverlayPosition(ThemesUtils.FONTS);
-        if (fontPickerValue != -1) {
-            mFontPicker.setValue(String.valueOf(fontPickerValue + 2));
-        } else {
-            mFontPicker.setValue("1");
-        }
-        mFontPicker.setSummary(mFontPicker.getEntry());
+        mFontPicker = registerListCategory(OverlayCategory.FONT);
 
         // Adaptive icon shape
-        mAdaptiveIconShape = (ListPreference) findPreference(PREF_ADAPTIVE_ICON_SHAPE);
-        int iconShapeValue = getOverlayPosition(ThemesUtils.ADAPTIVE_ICON_SHAPE);
-        if (iconShapeValue != -1) {
-            mAdaptiveIconShape.setValue(String.valueOf(iconShapeValue + 2));
-        } else {
-            mAdaptiveIconShape.setValue("1");
-        }
-        mAdaptiveIconShape.setSummary(mAdaptiveIconShape.getEntry());
+        mAdaptiveIconShape = registerListCategory(OverlayCategory.ADAPTIVE_ICON_SHAPE);
 
         mQsTileStyle = (ListPreference) findPreference(PREF_TILE_STYLE);
         int qsTileStyle = Settings.System.getInt(mContext.getContentResolver(),
@@ -260,16 +300,14 @@ public class Themes extends PreferenceFragment {
             public boolean onPreferenceChange(Preference preference, Object newValue) {
                 if (preference == mQsTileStyle) {
                     String value = (String) newValue;
-                    Settings.System.putInt(mContext.getContentResolver(), Settings.System.QS_TILE_STYLE, Integer.valueOf(value));
                     int valueIndex = mQsTileStyle.findIndexOfValue(value);
                     mQsTileStyle.setSummary(mQsTileStyle.getEntries()[valueIndex]);
-                    String overlayName = getOverlayName(ThemesUtils.QS_TILE_THEMES);
-                    if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                    }
-                    if (valueIndex > 0) {
-                        handleOverlays(ThemesUtils.QS_TILE_THEMES[valueIndex],
-                                true, mOverlayManager);
+                    if (mStaging) {
+                        stage(OverlayCategory.QS_TILE_STYLE, value);
+                    } else {
+                        Settings.System.putInt(mContext.getContentResolver(), Settings.System.QS_TILE_STYLE, Integer.valueOf(value));
+                        applyCategory(OverlayCategory.QS_TILE_STYLE, value, null);
+                        recordConfig(mConfig.withValue(OverlayCategory.QS_TILE_STYLE, value));
                     }
                     return true;
                 }
@@ -278,34 +316,33 @@ public class Themes extends PreferenceFragment {
        });
 
         // Statusbar icons
-        mStatusbarIcons = (ListPreference) findPreference(PREF_STATUSBAR_ICONS);
-        int sbIconsValue = getOverlayPosition(ThemesUtils.STATUSBAR_ICONS);
-        if (sbIconsValue != -1) {
-            mStatusbarIcons.setValue(String.valueOf(sbIconsValue + 2));
-        } else {
-            mStatusbarIcons.setValue("1");
-        }
-        mStatusbarIcons.setSummary(mStatusbarIcons.getEntry());
+        mStatusbarIcons = registerListCategory(OverlayCategory.STATUSBAR_ICONS);
 
-        // Statusbar icons
-        mQsHeaderStyle = (ListPreference) findPreference(PREF_QS_HEADER_STYLE);
-        int qsStyleValue = getOverlayPosition(ThemesUtils.QS_HEADER_THEMES);
-        if (qsStyleValue != -1) {
-            mQsHeaderStyle.setValue(String.valueOf(qsStyleValue + 2));
-        } else {
-            mQsHeaderStyle.setValue("1");
-        }
-        mQsHeaderStyle.setSummary(mQsHeaderStyle.getEntry());
+        // QS header style
+        mQsHeaderStyle = registerListCategory(OverlayCategory.QS_HEADER_STYLE);
 
-        // Statusbar icons
-        mSwitchStyle = (ListPreference) findPreference(PREF_SWITCH_STYLE);
-        int switchStyleValue = getOverlayPosition(ThemesUtils.SWITCH_STYLE);
-        if (switchStyleValue != -1) {
-            mSwitchStyle.setValue(String.valueOf(switchStyleValue + 2));
-        } else {
-            mSwitchStyle.setValue("1");
-        }
-        mSwitchStyle.setSummary(mSwitchStyle.getEntry());
+        // Switch style
+        mSwitchStyle = registerListCategory(OverlayCategory.SWITCH_STYLE);
+
+        // Installed overlays, the catalog may need a rebuild off the main thread
+        OverlayCatalog.refresh(mContext, new OverlayCatalog.Callback() {
+            @Override
+            public void onReady(OverlayCatalog catalog) {
+                if (!isAdded()) {
+                    return;
+                }
+                for (int i = 0; i < mCategoryHandlers.size(); i++) {
+                    CategoryHandler handler = mCategoryHandlers.valueAt(i);
+                    if (handler.preference instanceof ListPreference) {
+                        ListPreference preference = (ListPreference) handler.preference;
+                        filterEntries(preference, handler.category, catalog);
+                        preference.setSummary(preference.getEntry());
+                    }
+                }
+                filterEntries(mQsTileStyle, OverlayCategory.QS_TILE_STYLE, catalog);
+                mQsTileStyle.setSummary(mQsTileStyle.getEntry());
+            }
+        });
 
         setWallpaperPreview();
         updateNavbarSummary();
@@ -325,6 +362,8 @@ public class Themes extends PreferenceFragment {
                     int intHex = ColorPickerPreference.convertToColorInt(hex);
                     Settings.System.putIntForUser(getContext().getContentResolver(),
                     Settings.System.ACCENT_COLOR, intHex, UserHandle.USER_CURRENT);
+                    ThemeBackup.dataChanged(mContext);
+                    recordConfig(mConfig.withAccent(intHex));
                     return true;
                 }
                 return false;
@@ -334,313 +373,357 @@ public class Themes extends PreferenceFragment {
 
     private void setWallpaperPreview() {
         WallpaperManager wallpaperManager = WallpaperManager.getInstance(getActivity());
+        int wallpaperId = wallpaperManager.getWallpaperId(WallpaperManager.FLAG_SYSTEM);
+        if (wallpaperId == mWallpaperId) {
+            return;
+        }
+        mWallpaperId = wallpaperId;
         Drawable wallpaperDrawable = wallpaperManager.getDrawable();
         mWpPreview.setIcon(wallpaperDrawable);
     }
 
-    private int getOverlayPosition(String[] overlays) {
-        int position = -1;
-        for (int i = 0; i < overlays.length; i++) {
-            String overlay = overlays[i];
-            if (Utils.isThemeEnabled(overlay)) {
-                position = i;
+    private void filterEntries(ListPreference preference, OverlayCategory category,
+            OverlayCatalog catalog) {
+        CharSequence[] entries = preference.getEntries();
+        CharSequence[] values = preference.getEntryValues();
+        String[] overlays = category.getOverlays();
+        ArrayList<CharSequence> availableEntries = new ArrayList<>();
+        ArrayList<CharSequence> availableValues = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            int position = category.positionFromValue(values[i].toString());
+            if (position < 0 || position >= overlays.length
+                    || catalog.isAvailable(overlays[position])) {
+                availableEntries.add(entries[i]);
+                availableValues.add(values[i]);
             }
         }
-        return position;
+        preference.setEntries(availableEntries.toArray(new CharSequence[0]));
+        preference.setEntryValues(availableValues.toArray(new CharSequence[0]));
+    }
+
+    private int getOverlayPosition(String[] overlays) {
+        return OverlayState.get(mContext).getPosition(overlays);
     }
 
     private String getOverlayName(String[] overlays) {
-        String overlayName = null;
-        for (int i = 0; i < overlays.length; i++) {
-            String overlay = overlays[i];
-            if (Utils.isThemeEnabled(overlay)) {
-                overlayName = overlay;
-            }
-        }
-        return overlayName;
+        return OverlayState.get(mContext).getEnabled(overlays);
     }
 
     public OnSharedPreferenceChangeListener mSharedPrefListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
         @Override
         public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, String key) {
-            class FontPicker extends AsyncTask<Void, Void, Void> {
+            if (mRestoring) {
+                return;
+            }
 
-                protected Void doInBackground(Void... param) {
-                    return null;
-                }
+            CategoryHandler handler = mCategoryHandlers.get(key);
+            if (handler != null) {
+                handler.onChanged(sharedPreferences);
+                return;
+            }
 
-                protected void onPostExecute(Void param) {
+            if (PREF_THEME_SWITCH.equals(key)) {
+                ThemePlan plan = ThemePlan.get(sharedPreferences.getString(PREF_THEME_SWITCH, "1"));
+                if (plan != null) {
+                    queueTheme(mContext, plan, mOverlayManager);
+                    recordConfig(mConfig.withTheme(plan.getId()));
                 }
+                mThemeSwitch.setSummary(mThemeSwitch.getEntry());
+            }
+        }
+    };
 
-                @Override
-                protected void onPreExecute() {
-                    super.onPreExecute();
-                    String fontType = sharedPreferences.getString(PREF_FONT_PICKER, "1");
-                    String overlayName = getOverlayName(ThemesUtils.FONTS);
-                    int fontTypeValue = Integer.parseInt(fontType);
-                    if (overlayName != null) {
-                        handleOverlays(overlayName, false, mOverlayManager);
-                    }
-                    if (fontTypeValue > 1) {
-                        handleOverlays(ThemesUtils.FONTS[fontTypeValue - 2],
-                                true, mOverlayManager);
-                    }
-                    mFontPicker.setSummary(mFontPicker.getEntry());
-                }
+    /**
+     * Keeps the schedule summary current while the fragment lives, so it
+     * does not have to be rebuilt on every resume.
+     */
+    private final OnSharedPreferenceChangeListener mScheduleListener =
+            new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if (PREF_THEME_SCHEDULE.equals(key) || PREF_THEME_SCHEDULED_START_THEME.equals(key)
+                    || PREF_THEME_SCHEDULED_START_TIME.equals(key)) {
+                updateThemeScheduleSummary();
             }
+        }
+    };
 
-            if (key.equals(PREF_THEME_NAVBAR_STYLE)) {
-                String navbarStyle = sharedPreferences.getString(PREF_THEME_NAVBAR_STYLE, "default");
-                String overlayName = getOverlayName(ThemesUtils.NAVBAR_STYLES);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (navbarStyle != "default") {
-                    handleOverlays(navbarStyle, true, mOverlayManager);
+    private final ThemeWatcher.Listener mWatcherListener = new ThemeWatcher.Listener() {
+        @Override
+        public void onCategoryChanged(OverlayCategory category, int position) {
+            String value = category.valueFromPosition(position);
+            mConfig = mConfig.withValue(category, value);
+            if (mStaged.containsKey(category)) {
+                // Keep showing what the user staged
+                return;
+            }
+            mRestoring = true;
+            if (category == OverlayCategory.QS_TILE_STYLE) {
+                showListValue(mQsTileStyle, value);
+            } else {
+                CategoryHandler handler = mCategoryHandlers.get(category.getKey());
+                if (handler != null && handler.preference instanceof ListPreference) {
+                    showListValue((ListPreference) handler.preference, value);
+                } else if (handler != null) {
+                    mSharedPreferences.edit().putString(category.getKey(), value).commit();
+                    if (handler.onApplied != null) {
+                        handler.onApplied.run();
+                    }
                 }
-                updateNavbarSummary();
             }
+            mRestoring = false;
+        }
 
-            if (key.equals(PREF_FONT_PICKER)) {
-                new FontPicker().execute();
-            }
+        @Override
+        public void onThemeChanged(ThemePlan plan) {
+            mConfig = mConfig.withTheme(plan.getId());
+            mRestoring = true;
+            showListValue(mThemeSwitch, plan.getId());
+            mRestoring = false;
+        }
 
-            if (key.equals(PREF_ADAPTIVE_ICON_SHAPE)) {
-                String adapativeIconShape = sharedPreferences.getString(PREF_ADAPTIVE_ICON_SHAPE, "1");
-                String overlayName = getOverlayName(ThemesUtils.ADAPTIVE_ICON_SHAPE);
-                int adapativeIconShapeValue = Integer.parseInt(adapativeIconShape);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (adapativeIconShapeValue > 1) {
-                    handleOverlays(ThemesUtils.ADAPTIVE_ICON_SHAPE[adapativeIconShapeValue - 2],
-                            true, mOverlayManager);
-                }
-                mAdaptiveIconShape.setSummary(mAdaptiveIconShape.getEntry());
+        @Override
+        public void onAccentChanged(int accent) {
+            mConfig = mConfig.withAccent(accent);
+            mAccentColor.setNewPreviewColor(accent);
+        }
+    };
+
+    private void showListValue(ListPreference preference, String value) {
+        if (!value.equals(preference.getValue())) {
+            preference.setValue(value);
+            preference.setSummary(preference.getEntry());
+        }
+    }
+
+    /**
+     * Sets up the list preference of a category from the current overlays
+     * and registers it for change dispatch.
+     */
+    private ListPreference registerListCategory(OverlayCategory category) {
+        ListPreference preference = (ListPreference) findPreference(category.getKey());
+        preference.setValue(category.valueFromPosition(getOverlayPosition(category.getOverlays())));
+        preference.setSummary(preference.getEntry());
+        registerCategory(category, preference, null);
+        return preference;
+    }
+
+    private void registerCategory(OverlayCategory category, Preference preference,
+            Runnable onApplied) {
+        mCategoryHandlers.put(category.getKey(), new CategoryHandler(category, preference, onApplied));
+    }
+
+    /**
+     * Queues the overlay change for a category on the apply queue, so the
+     * binder calls never run on the main thread and a quick succession of
+     * selections only applies the last one.
+     */
+    private void applyCategory(final OverlayCategory category, final String value,
+            Runnable onApplied) {
+        final Context context = mContext.getApplicationContext();
+        final long generation = ThemeArbiter.stamp(category.getKey());
+        OverlayApplyQueue.get().enqueue(category.getKey(), new Runnable() {
+            @Override
+            public void run() {
+                category.applyTo(new OverlayTransaction(mOverlayManager)
+                        .setGeneration(category.getKey(), generation)
+                        .setUsers(ThemeUsers.getTargets(context)), value)
+                        .commit(context);
             }
+        }, onApplied);
+    }
 
-            if (key.equals(PREF_STATUSBAR_ICONS)) {
-                String statusbarIcons = sharedPreferences.getString(PREF_STATUSBAR_ICONS, "1");
-                String overlayName = getOverlayName(ThemesUtils.STATUSBAR_ICONS);
-                int statusbarIconsValue = Integer.parseInt(statusbarIcons);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (statusbarIconsValue > 1) {
-                    handleOverlays(ThemesUtils.STATUSBAR_ICONS[statusbarIconsValue - 2],
-                            true, mOverlayManager);
-                }
-                mStatusbarIcons.setSummary(mStatusbarIcons.getEntry());
+    private void recordConfig(ThemeConfig config) {
+        mConfig = config;
+        ThemeHistory.get().record(config);
+        getActivity().invalidateOptionsMenu();
+    }
+
+    /**
+     * Goes one step back or forward in the history. Only the fields that
+     * differ from the current configuration are applied.
+     */
+    private void stepHistory(boolean undo) {
+        ThemeConfig target = undo ? ThemeHistory.get().undo() : ThemeHistory.get().redo();
+        if (target == null) {
+            return;
+        }
+        ThemeConfig from = mConfig;
+        mConfig = target;
+        target.applyFrom(mContext, from, mOverlayManager, new Runnable() {
+            @Override
+            public void run() {
+                updateNavbarSummary();
             }
+        });
+        showConfig(target);
+        getActivity().invalidateOptionsMenu();
+    }
 
-            if (key.equals(PREF_QS_HEADER_STYLE)) {
-                String qsHeaderStyle = sharedPreferences.getString(PREF_QS_HEADER_STYLE, "1");
-                String overlayName = getOverlayName(ThemesUtils.QS_HEADER_THEMES);
-                int qsHeaderStyleValue = Integer.parseInt(qsHeaderStyle);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (qsHeaderStyleValue > 1) {
-                    handleOverlays(ThemesUtils.QS_HEADER_THEMES[qsHeaderStyleValue - 2],
-                            true, mOverlayManager);
-                }
-                mQsHeaderStyle.setSummary(mQsHeaderStyle.getEntry());
+    /**
+     * Puts the preferences in line with a configuration without dispatching
+     * the changes again.
+     */
+    private void showConfig(ThemeConfig config) {
+        mRestoring = true;
+        for (int i = 0; i < mCategoryHandlers.size(); i++) {
+            CategoryHandler handler = mCategoryHandlers.valueAt(i);
+            String value = config.getValue(handler.category);
+            if (handler.preference instanceof ListPreference) {
+                ListPreference preference = (ListPreference) handler.preference;
+                preference.setValue(value);
+                preference.setSummary(preference.getEntry());
+            } else {
+                mSharedPreferences.edit().putString(handler.category.getKey(), value).commit();
             }
+        }
+        mQsTileStyle.setValue(config.getValue(OverlayCategory.QS_TILE_STYLE));
+        mQsTileStyle.setSummary(mQsTileStyle.getEntry());
+        if (config.getTheme() != null) {
+            mThemeSwitch.setValue(config.getTheme());
+            mThemeSwitch.setSummary(mThemeSwitch.getEntry());
+        }
+        mAccentColor.setNewPreviewColor(config.getAccent());
+        mRestoring = false;
+    }
 
-            if (key.equals(PREF_SWITCH_STYLE)) {
-                String switchStyle = sharedPreferences.getString(PREF_SWITCH_STYLE, "1");
-                String overlayName = getOverlayName(ThemesUtils.SWITCH_STYLE);
-                int switchStyleValue = Integer.parseInt(switchStyle);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (switchStyleValue > 1) {
-                    handleOverlays(ThemesUtils.SWITCH_STYLE[switchStyleValue - 2],
-                            true, mOverlayManager);
+    private void stage(OverlayCategory category, String value) {
+        mStaged.put(category, value);
+        getActivity().invalidateOptionsMenu();
+    }
+
+    /**
+     * Commits every staged category in one transaction, so the whole change
+     * set costs a single configuration change. Pending single category
+     * applies are superseded by it.
+     */
+    private void applyStaged() {
+        final ArrayMap<OverlayCategory, String> staged = new ArrayMap<>(mStaged);
+        mStaged.clear();
+        mStaging = false;
+        getActivity().invalidateOptionsMenu();
+        if (staged.isEmpty()) {
+            return;
+        }
+
+        ThemeConfig config = mConfig;
+        for (int i = 0; i < staged.size(); i++) {
+            config = config.withValue(staged.keyAt(i), staged.valueAt(i));
+        }
+        recordConfig(config);
+
+        String tileValue = staged.get(OverlayCategory.QS_TILE_STYLE);
+        if (tileValue != null) {
+            Settings.System.putInt(mContext.getContentResolver(),
+                    Settings.System.QS_TILE_STYLE, Integer.valueOf(tileValue));
+        }
+        for (int i = 0; i < staged.size(); i++) {
+            ThemeArbiter.stamp(staged.keyAt(i).getKey());
+        }
+        final Context context = mContext.getApplicationContext();
+        final long generation = ThemeArbiter.stamp(STAGED_SCOPE);
+        OverlayApplyQueue.get().enqueue(STAGED_SCOPE, new Runnable() {
+            @Override
+            public void run() {
+                OverlayTransaction transaction = new OverlayTransaction(mOverlayManager)
+                        .setGeneration(STAGED_SCOPE, generation)
+                        .setUsers(ThemeUsers.getTargets(context));
+                for (int i = 0; i < staged.size(); i++) {
+                    staged.keyAt(i).applyTo(transaction, staged.valueAt(i));
                 }
-                mSwitchStyle.setSummary(mSwitchStyle.getEntry());
+                transaction.commit(context);
             }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                updateNavbarSummary();
+            }
+        });
+    }
 
-	    if (key.equals(PREF_ROUNDED_CORNER)) {
-		String roundedStyle = sharedPreferences.getString(PREF_ROUNDED_CORNER, "1");
-	        int roundedValue = Integer.parseInt(roundedStyle);
-                String overlayName = getOverlayName(ThemesUtils.UI_RADIUS);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (roundedValue > 1) {
-                    handleOverlays(ThemesUtils.UI_RADIUS[roundedValue -2],
-                            true, mOverlayManager);
+    /**
+     * Leaves staging and puts every preference back to the overlays that are
+     * actually enabled.
+     */
+    private void discardStaged() {
+        mStaged.clear();
+        mStaging = false;
+        getActivity().invalidateOptionsMenu();
+        // Only the shown values go back, nothing is applied or recorded
+        mRestoring = true;
+        try {
+            for (int i = 0; i < mCategoryHandlers.size(); i++) {
+                CategoryHandler handler = mCategoryHandlers.valueAt(i);
+                String value = handler.category.valueFromPosition(
+                        getOverlayPosition(handler.category.getOverlays()));
+                if (handler.preference instanceof ListPreference) {
+                    ListPreference preference = (ListPreference) handler.preference;
+                    preference.setValue(value);
+                    preference.setSummary(preference.getEntry());
+                } else {
+                    mSharedPreferences.edit().putString(handler.category.getKey(), value).commit();
                 }
-                mRoundedUi.setSummary(mRoundedUi.getEntry());
             }
+            mQsTileStyle.setValue(String.valueOf(Settings.System.getInt(
+                    mContext.getContentResolver(), Settings.System.QS_TILE_STYLE, 0)));
+            mQsTileStyle.setSummary(mQsTileStyle.getEntry());
+        } finally {
+            mRestoring = false;
+        }
+    }
 
-		if (key.equals(PREF_SB_HEIGHT)) {
-		    String statusbarHeight = sharedPreferences.getString(PREF_SB_HEIGHT, "1");
-		    int sbHeightValue = Integer.parseInt(statusbarHeight);
-		    String overlayName = getOverlayName(ThemesUtils.STATUSBAR_HEIGHT);
-		        if (overlayName != null) {
-		            handleOverlays(overlayName, false, mOverlayManager);
-		        }
-		        if (sbHeightValue > 1) {
-		            handleOverlays(ThemesUtils.STATUSBAR_HEIGHT[sbHeightValue -2],
-		                    true, mOverlayManager);
-		        }
-		        mSbHeight.setSummary(mSbHeight.getEntry());
-		}
-
-            if (key.equals(PREF_THEME_SWITCH)) {
-                String themeSwitch = sharedPreferences.getString(PREF_THEME_SWITCH, "1");
-                switch (themeSwitch) {
-                    case "1":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.CORVUS_CLEAR, mOverlayManager);
-                        break;
-                    case "2":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CORVUS_CLEAR, mOverlayManager);
-                        break;
-                    case "3":
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CORVUS_CLEAR, mOverlayManager);
-                        break;
-                    case "4":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CORVUS_CLEAR, mOverlayManager);
-                        break;
-                    case "5":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CORVUS_CLEAR, mOverlayManager);
-                        break;
-                    case "6":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CORVUS_CLEAR, mOverlayManager);
-                        break;
-                    case "7":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CORVUS_CLEAR, mOverlayManager);
-                        break;
-                    case "8":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CORVUS_CLEAR, mOverlayManager);
-                        break;
-                    case "9":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CORVUS_CLEAR, mOverlayManager);
-                        break;
-                }
-                mThemeSwitch.setSummary(mThemeSwitch.getEntry());
+    private void showStaged() {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < mStaged.size(); i++) {
+            if (message.length() > 0) {
+                message.append('\n');
             }
+            message.append(getStagedLabel(mStaged.keyAt(i), mStaged.valueAt(i)));
         }
-    };
+        if (message.length() == 0) {
+            message.append(mContext.getString(R.string.theme_staged_dialog_empty));
+        }
+        new AlertDialog.Builder(getActivity(), R.style.AccentDialogTheme)
+                .setTitle(mContext.getString(R.string.theme_staged_dialog_title))
+                .setMessage(message)
+                .setPositiveButton(mContext.getString(R.string.theme_staged_apply_title),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                applyStaged();
+                            }
+                        })
+                .setNeutralButton(mContext.getString(R.string.theme_staged_discard),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                discardStaged();
+                            }
+                        })
+                .setNegativeButton(mContext.getString(android.R.string.cancel),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                dialog.dismiss();
+                            }
+                        }).show();
+    }
+
+    private CharSequence getStagedLabel(OverlayCategory category, String value) {
+        Preference preference = category == OverlayCategory.QS_TILE_STYLE
+                ? mQsTileStyle : mCategoryHandlers.get(category.getKey()).preference;
+        CharSequence entry;
+        if (preference instanceof ListPreference) {
+            ListPreference listPreference = (ListPreference) preference;
+            int index = listPreference.findIndexOfValue(value);
+            entry = index >= 0 ? listPreference.getEntries()[index] : value;
+        } else {
+            int position = category.positionFromValue(value);
+            entry = position >= 0 && position < mNavbarName.length ? mNavbarName[position]
+                    : mContext.getString(R.string.theme_accent_picker_default);
+        }
+        return preference.getTitle() + ": " + entry;
+    }
 
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
     }
@@ -653,17 +736,17 @@ public class Themes extends PreferenceFragment {
     public void onResume() {
         super.onResume();
         mSharedPreferences.registerOnSharedPreferenceChangeListener(mSharedPrefListener);
+        mWatcher.start();
         setWallpaperPreview();
-        updateThemeScheduleSummary();
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        mWatcher.stop();
         if (!mUseSharedPrefListener) {
             mSharedPreferences.unregisterOnSharedPreferenceChangeListener(mSharedPrefListener);
         }
-        updateThemeScheduleSummary();
     }
 
     @Override
@@ -672,7 +755,12 @@ public class Themes extends PreferenceFragment {
         if (!mUseSharedPrefListener) {
             mSharedPreferences.unregisterOnSharedPreferenceChangeListener(mSharedPrefListener);
         }
-        updateThemeScheduleSummary();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mSharedPreferences.unregisterOnSharedPreferenceChangeListener(mScheduleListener);
     }
 
     private void updateThemeScheduleSummary() {
@@ -688,6 +776,24 @@ public class Themes extends PreferenceFragment {
         }
     }
 
+    private void updateThemeUsersSummary(Set<String> values) {
+        StringBuilder summary = new StringBuilder();
+        CharSequence[] entryValues = mThemeUsers.getEntryValues();
+        for (int i = 0; i < entryValues.length; i++) {
+            if (values.contains(entryValues[i].toString())) {
+                if (summary.length() > 0) {
+                    summary.append(", ");
+                }
+                summary.append(mThemeUsers.getEntries()[i]);
+            }
+        }
+        if (summary.length() == 0) {
+            mThemeUsers.setSummary(R.string.theme_apply_users_summary);
+        } else {
+            mThemeUsers.setSummary(summary);
+        }
+    }
+
     private void updateNavbarSummary() {
         if (mNavbarPicker != null) {
             int value = getOverlayPosition(ThemesUtils.NAVBAR_STYLES);
@@ -705,6 +811,22 @@ public class Themes extends PreferenceFragment {
         super.onCreateOptionsMenu(menu, inflater);
     }
 
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        menu.findItem(R.id.themes_stage).setChecked(mStaging);
+        menu.findItem(R.id.themes_apply_staged).setVisible(mStaging);
+        // Undo and profiles need every category in the packed configuration
+        boolean packed = !mStaging && ThemeConfig.isSupported();
+        menu.findItem(R.id.themes_profiles).setVisible(packed);
+        menu.findItem(R.id.themes_profiles_export).setVisible(packed);
+        menu.findItem(R.id.themes_profiles_import).setVisible(packed);
+        menu.findItem(R.id.themes_undo).setVisible(packed)
+                .setEnabled(ThemeHistory.get().canUndo());
+        menu.findItem(R.id.themes_redo).setVisible(packed)
+                .setEnabled(ThemeHistory.get().canRedo());
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -714,11 +836,190 @@ public class Themes extends PreferenceFragment {
             case R.id.themes_reset:
                 resetThemes();
                 return true;
+            case R.id.themes_stage:
+                if (mStaging) {
+                    if (mStaged.isEmpty()) {
+                        mStaging = false;
+                        getActivity().invalidateOptionsMenu();
+                    } else {
+                        showStaged();
+                    }
+                } else {
+                    mStaging = true;
+                    getActivity().invalidateOptionsMenu();
+                }
+                return true;
+            case R.id.themes_apply_staged:
+                showStaged();
+                return true;
+            case R.id.themes_profiles:
+                showProfiles();
+                return true;
+            case R.id.themes_profiles_export:
+                startActivityForResult(new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType(PROFILES_MIME_TYPE)
+                        .putExtra(Intent.EXTRA_TITLE,
+                                mContext.getString(R.string.theme_profiles_file_name)),
+                        REQUEST_EXPORT_PROFILES);
+                return true;
+            case R.id.themes_profiles_import:
+                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType(PROFILES_MIME_TYPE), REQUEST_IMPORT_PROFILES);
+                return true;
+            case R.id.themes_undo:
+                stepHistory(true);
+                return true;
+            case R.id.themes_redo:
+                stepHistory(false);
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
+    private void showProfiles() {
+        final ThemeProfiles profiles = new ThemeProfiles(mContext);
+        final List<String> names = profiles.getNames();
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity(), R.style.AccentDialogTheme)
+                .setTitle(mContext.getString(R.string.theme_profiles_title))
+                .setPositiveButton(mContext.getString(R.string.theme_profile_save),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                showProfileNameDialog(profiles, null);
+                            }
+                        })
+                .setNegativeButton(mContext.getString(android.R.string.cancel),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                dialog.dismiss();
+                            }
+                        });
+        if (names.isEmpty()) {
+            builder.setMessage(mContext.getString(R.string.theme_profiles_empty));
+        } else {
+            builder.setItems(names.toArray(new CharSequence[0]),
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            showProfileActions(profiles, names.get(which));
+                        }
+                    });
+        }
+        builder.show();
+    }
+
+    private void showProfileActions(final ThemeProfiles profiles, final String name) {
+        new AlertDialog.Builder(getActivity(), R.style.AccentDialogTheme)
+                .setTitle(name)
+                .setPositiveButton(mContext.getString(R.string.theme_profile_apply),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                applyProfile(profiles, name);
+                            }
+                        })
+                .setNeutralButton(mContext.getString(R.string.theme_profile_rename),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                showProfileNameDialog(profiles, name);
+                            }
+                        })
+                .setNegativeButton(mContext.getString(R.string.theme_button_delete_theme),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                profiles.delete(name);
+                            }
+                        }).show();
+    }
+
+    /**
+     * Asks for a profile name, saving the current configuration under it or
+     * renaming the given profile.
+     */
+    private void showProfileNameDialog(final ThemeProfiles profiles, final String name) {
+        View view = getActivity().getLayoutInflater().inflate(R.layout.rename_theme_dialog, null);
+        final EditText nameText = view.findViewById(R.id.renameTheme);
+        if (name != null) {
+            nameText.setText(name);
+            nameText.setSelection(name.length());
+        }
+        new AlertDialog.Builder(getActivity(), R.style.AccentDialogTheme)
+                .setTitle(mContext.getString(R.string.theme_profile_name_title))
+                .setView(view)
+                .setPositiveButton(mContext.getString(android.R.string.ok),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                String newName = nameText.getText().toString().trim();
+                                if (newName.isEmpty() || newName.equals(name)) {
+                                    return;
+                                }
+                                if (name == null) {
+                                    profiles.save(newName, mConfig);
+                                } else if (!profiles.rename(name, newName)) {
+                                    Toast.makeText(mContext, mContext.getString(
+                                            R.string.theme_profile_exists), Toast.LENGTH_SHORT).show();
+                                }
+                            }
+                        })
+                .setNegativeButton(mContext.getString(android.R.string.cancel),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                dialog.dismiss();
+                            }
+                        }).show();
+    }
+
+    /**
+     * Applies a profile as one diff against the current configuration, so
+     * only what differs is touched.
+     */
+    private void applyProfile(ThemeProfiles profiles, String name) {
+        ThemeConfig profile = profiles.get(name);
+        if (profile != null) {
+            applyProfile(name, profile);
+        }
+    }
+
+    private void applyProfile(String name, ThemeConfig profile) {
+        ThemeConfig from = mConfig;
+        profile.applyFrom(mContext, from, mOverlayManager, new Runnable() {
+            @Override
+            public void run() {
+                updateNavbarSummary();
+            }
+        });
+        recordConfig(profile);
+        showConfig(profile);
+        Toast.makeText(mContext, mContext.getString(R.string.theme_profile_applied, name),
+                Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (resultCode != Activity.RESULT_OK || data == null || data.getData() == null) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        switch (requestCode) {
+            case REQUEST_EXPORT_PROFILES:
+                new ExportProfiles(data.getData()).execute();
+                break;
+            case REQUEST_IMPORT_PROFILES:
+                new ImportProfiles(data.getData()).execute();
+                break;
+            default:
+                super.onActivityResult(requestCode, resultCode, data);
+        }
+    }
+
     private void resetThemes() {
         new AlertDialog.Builder(getActivity(), R.style.AccentDialogTheme)
                 .setTitle(mContext.getString(R.string.theme_reset_dialog_title))
@@ -728,7 +1029,7 @@ public class Themes extends PreferenceFragment {
                         new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
-                                new resetThemes().execute();
+                                resetToDefaults();
                             }
                         })
                 .setNegativeButton(getContext().getString(android.R.string.cancel),
@@ -740,36 +1041,126 @@ public class Themes extends PreferenceFragment {
                         }).show();
     }
 
-    class resetThemes extends AsyncTask<Void, Void, Void> {
+    /**
+     * Shows the defaults right away and lets the reset engine bring the
+     * overlays and settings in line, it reports the users that did not
+     * really end up on the defaults.
+     */
+    private void resetToDefaults() {
+        mStaged.clear();
+        mStaging = false;
+        showConfig(ThemeConfig.DEFAULT);
+        recordConfig(ThemeConfig.DEFAULT);
+        ThemeReset.reset(mContext, mOverlayManager, new ThemeReset.Callback() {
+            @Override
+            public void onReset(int[] unconfirmedUsers) {
+                if (isAdded()) {
+                    updateNavbarSummary();
+                }
+                String message;
+                if (unconfirmedUsers.length == 0) {
+                    message = mContext.getString(R.string.theme_reset_toast);
+                } else {
+                    StringBuilder users = new StringBuilder();
+                    for (int userId : unconfirmedUsers) {
+                        if (users.length() > 0) {
+                            users.append(", ");
+                        }
+                        users.append(userId);
+                    }
+                    message = mContext.getString(R.string.theme_reset_failed, users);
+                }
+                Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
 
-        protected Void doInBackground(Void... param) {
-            mSharedPreferences.edit()
-            // NavBar
-            .remove(PREF_THEME_NAVBAR_STYLE)
-            // Fonts
-            .remove(PREF_FONT_PICKER)
-            // Adapative icons
-            .remove(PREF_ADAPTIVE_ICON_SHAPE)
-            // Statusbar icons
-            .remove(PREF_STATUSBAR_ICONS)
-            // Themes
-            .remove(PREF_THEME_SWITCH)
-            // Header style
-            .remove(PREF_QS_HEADER_STYLE)
-            // Switch style
-            .remove(PREF_SWITCH_STYLE)
-            .apply();
+    class ExportProfiles extends AsyncTask<Void, Void, Integer> {
 
-            return null;
+        private final Uri mUri;
+
+        ExportProfiles(Uri uri) {
+            mUri = uri;
         }
 
-        protected void onPostExecute(Void param) {
-            Toast.makeText(mContext, mContext.getString(R.string.theme_reset_toast), Toast.LENGTH_LONG).show();
+        protected Integer doInBackground(Void... param) {
+            try (OutputStream os = mContext.getContentResolver().openOutputStream(mUri)) {
+                return ThemeProfileCodec.write(os, new ThemeProfiles(mContext));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to export profiles", e);
+                return -1;
+            }
         }
 
-        @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
+        protected void onPostExecute(Integer count) {
+            Toast.makeText(mContext, count < 0
+                    ? mContext.getString(R.string.theme_profiles_export_failed)
+                    : mContext.getString(R.string.theme_profiles_exported, count),
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Reads the profiles of a file into the saved ones and applies the
+     * first of them as one batch, which is what provisioning needs.
+     */
+    class ImportProfiles extends AsyncTask<Void, Void, ThemeProfileCodec.ImportResult> {
+
+        private final Uri mUri;
+
+        ImportProfiles(Uri uri) {
+            mUri = uri;
+        }
+
+        protected ThemeProfileCodec.ImportResult doInBackground(Void... param) {
+            try (InputStream is = mContext.getContentResolver().openInputStream(mUri)) {
+                return ThemeProfileCodec.read(is, new ThemeProfiles(mContext));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to import profiles", e);
+                return null;
+            }
+        }
+
+        protected void onPostExecute(ThemeProfileCodec.ImportResult result) {
+            if (result == null) {
+                Toast.makeText(mContext, mContext.getString(R.string.theme_profiles_import_failed),
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
+            String message = result.skipped > 0
+                    ? mContext.getString(R.string.theme_profiles_imported_skipped,
+                            result.count, result.skipped)
+                    : mContext.getString(R.string.theme_profiles_imported, result.count);
+            Toast.makeText(mContext, message, Toast.LENGTH_SHORT).show();
+            if (result.first != null && isAdded()) {
+                applyProfile(result.firstName, result.first);
+            }
+        }
+    }
+
+    private final class CategoryHandler {
+        final OverlayCategory category;
+        final Preference preference;
+        final Runnable onApplied;
+
+        CategoryHandler(OverlayCategory category, Preference preference, Runnable onApplied) {
+            this.category = category;
+            this.preference = preference;
+            this.onApplied = onApplied;
+        }
+
+        void onChanged(SharedPreferences sharedPreferences) {
+            String value = sharedPreferences.getString(category.getKey(),
+                    category.getDefaultValue());
+            if (mStaging) {
+                stage(category, value);
+            } else {
+                applyCategory(category, value, onApplied);
+                recordConfig(mConfig.withValue(category, value));
+            }
+            if (preference instanceof ListPreference) {
+                preference.setSummary(((ListPreference) preference).getEntry());
+            }
         }
     }
 }
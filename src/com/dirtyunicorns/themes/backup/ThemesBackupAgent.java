@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.backup;
+
+import android.app.backup.BackupAgent;
+import android.app.backup.BackupDataInput;
+import android.app.backup.BackupDataOutput;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.dirtyunicorns.themes.utils.ThemeBackup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Key-value backup of the theme state as a single entity. The state file
+ * holds the checksum of the last payload, an unchanged state is not sent
+ * again.
+ */
+public class ThemesBackupAgent extends BackupAgent {
+
+    private static final String TAG = "ThemesBackupAgent";
+    private static final String KEY_THEME_STATE = "theme_state";
+
+    @Override
+    public void onBackup(ParcelFileDescriptor oldState, BackupDataOutput data,
+            ParcelFileDescriptor newState) throws IOException {
+        byte[] payload = ThemeBackup.write(this);
+        long checksum = checksum(payload);
+        if (oldState == null || readChecksum(oldState) != checksum) {
+            data.writeEntityHeader(KEY_THEME_STATE, payload.length);
+            data.writeEntityData(payload, payload.length);
+        }
+        writeChecksum(newState, checksum);
+    }
+
+    @Override
+    public void onRestore(BackupDataInput data, int appVersionCode,
+            ParcelFileDescriptor newState) throws IOException {
+        long checksum = -1;
+        while (data.readNextHeader()) {
+            if (!KEY_THEME_STATE.equals(data.getKey())) {
+                data.skipEntityData();
+                continue;
+            }
+            byte[] payload = new byte[data.getDataSize()];
+            data.readEntityData(payload, 0, payload.length);
+            try {
+                ThemeBackup.restore(this, payload);
+                checksum = checksum(payload);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to restore theme state", e);
+            }
+        }
+        writeChecksum(newState, checksum);
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static long readChecksum(ParcelFileDescriptor state) {
+        try {
+            return new DataInputStream(new FileInputStream(state.getFileDescriptor())).readLong();
+        } catch (IOException e) {
+            // First backup, or a state file of an older version
+            return -1;
+        }
+    }
+
+    private static void writeChecksum(ParcelFileDescriptor state, long checksum)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(state.getFileDescriptor()));
+        out.writeLong(checksum);
+        out.flush();
+    }
+}
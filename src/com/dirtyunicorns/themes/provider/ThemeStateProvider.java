@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.provider;
+
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_SWITCH;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import androidx.preference.PreferenceManager;
+
+import com.dirtyunicorns.themes.utils.OverlayCategory;
+import com.dirtyunicorns.themes.utils.ThemeConfig;
+import com.dirtyunicorns.themes.utils.ThemePlan;
+import com.dirtyunicorns.themes.utils.ThemeSchedule;
+import com.dirtyunicorns.themes.utils.ThemeWatcher;
+
+/**
+ * Read-only view of the resolved theme configuration, one row with the
+ * theme id, the selected value of every category, the accent and the
+ * schedule. The row is served from a snapshot that is only rebuilt after
+ * something changed, readers are notified on {@link #CONTENT_URI}.
+ */
+public class ThemeStateProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "com.dirtyunicorns.themes.state";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/state");
+
+    public static final String COLUMN_THEME = "theme";
+    public static final String COLUMN_ACCENT = "accent";
+    public static final String COLUMN_SCHEDULE_ENABLED = "schedule_enabled";
+    public static final String COLUMN_SCHEDULE_TRANSITIONS = "schedule_transitions";
+    public static final String COLUMN_SCHEDULE_ACTIVE_THEME = "schedule_active_theme";
+    public static final String COLUMN_SCHEDULE_NEXT_THEME = "schedule_next_theme";
+    public static final String COLUMN_SCHEDULE_NEXT_TIME = "schedule_next_time";
+
+    private static final String TYPE = "vnd.android.cursor.item/vnd.dirtyunicorns.themes.state";
+
+    /** Category columns are named after their preference keys. */
+    private static final String[] COLUMNS;
+
+    static {
+        String[] fixed = {
+                COLUMN_THEME,
+                COLUMN_ACCENT,
+                COLUMN_SCHEDULE_ENABLED,
+                COLUMN_SCHEDULE_TRANSITIONS,
+                COLUMN_SCHEDULE_ACTIVE_THEME,
+                COLUMN_SCHEDULE_NEXT_THEME,
+                COLUMN_SCHEDULE_NEXT_TIME
+        };
+        COLUMNS = new String[fixed.length + OverlayCategory.ALL.length];
+        System.arraycopy(fixed, 0, COLUMNS, 0, fixed.length);
+        for (int i = 0; i < OverlayCategory.ALL.length; i++) {
+            COLUMNS[fixed.length + i] = OverlayCategory.ALL[i].getKey();
+        }
+    }
+
+    private final Object mLock = new Object();
+    private Object[] mSnapshot;
+    private int mGeneration;
+
+    private SharedPreferences mSharedPreferences;
+    private SharedPreferences mSchedulePreferences;
+    private ThemeWatcher mWatcher;
+
+    @Override
+    public boolean onCreate() {
+        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(getContext());
+        mSharedPreferences.registerOnSharedPreferenceChangeListener(mSharedPrefListener);
+        mSchedulePreferences = ThemeSchedule.getPreferences(getContext());
+        mSchedulePreferences.registerOnSharedPreferenceChangeListener(mSharedPrefListener);
+        mWatcher = new ThemeWatcher(getContext(), mWatcherListener);
+        mWatcher.start();
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        Object[] snapshot;
+        int generation;
+        synchronized (mLock) {
+            snapshot = mSnapshot;
+            generation = mGeneration;
+        }
+        if (snapshot == null) {
+            snapshot = buildSnapshot();
+            synchronized (mLock) {
+                // Keep it only if nothing changed while building
+                if (generation == mGeneration) {
+                    mSnapshot = snapshot;
+                }
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection != null ? projection : COLUMNS, 1);
+        MatrixCursor.RowBuilder row = cursor.newRow();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            row.add(COLUMNS[i], snapshot[i]);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        return cursor;
+    }
+
+    private Object[] buildSnapshot() {
+        ThemeConfig config = ThemeConfig.capture(getContext());
+        ThemeSchedule schedule = ThemeSchedule.load(getContext());
+        long now = System.currentTimeMillis();
+        long next = schedule.getNextTime(now);
+
+        Object[] values = {
+                config.getTheme(),
+                config.getAccent(),
+                next >= 0 ? 1 : 0,
+                schedule.encode(),
+                next >= 0 ? schedule.getActiveTheme(now) : null,
+                next >= 0 ? schedule.getNextTheme(now) : null,
+                next
+        };
+        Object[] snapshot = new Object[COLUMNS.length];
+        System.arraycopy(values, 0, snapshot, 0, values.length);
+        for (int i = 0; i < OverlayCategory.ALL.length; i++) {
+            snapshot[values.length + i] = config.getValue(OverlayCategory.ALL[i]);
+        }
+        return snapshot;
+    }
+
+    private void onStateChanged() {
+        synchronized (mLock) {
+            mSnapshot = null;
+            mGeneration++;
+        }
+        getContext().getContentResolver().notifyChange(CONTENT_URI, null);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return TYPE;
+    }
+
+    // Writes are guarded by a signature permission and ignored, throwing
+    // would let a caller raise an exception in this process
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    private final ThemeWatcher.Listener mWatcherListener = new ThemeWatcher.Listener() {
+        @Override
+        public void onCategoryChanged(OverlayCategory category, int position) {
+            onStateChanged();
+        }
+
+        @Override
+        public void onThemeChanged(ThemePlan plan) {
+            onStateChanged();
+        }
+
+        @Override
+        public void onAccentChanged(int accent) {
+            onStateChanged();
+        }
+    };
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSharedPrefListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            // The theme switch covers light and dark, which no overlay tells apart
+            if (sharedPreferences == mSchedulePreferences || PREF_THEME_SWITCH.equals(key)) {
+                onStateChanged();
+            }
+        }
+    };
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.receivers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.dirtyunicorns.themes.utils.ReceiverWorker;
+import com.dirtyunicorns.themes.utils.ThemeJournal;
+import com.dirtyunicorns.themes.utils.ThemeScheduler;
+
+public class ThemesBootReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(final Context context, Intent intent) {
+        String action = intent.getAction();
+        if (Intent.ACTION_LOCKED_BOOT_COMPLETED.equals(action)) {
+            ReceiverWorker.execute("Locked boot", goAsync(), new ReceiverWorker.Task() {
+                @Override
+                public void run(Runnable done) {
+                    ThemeJournal.recover(context);
+                    // Alarms don't survive a reboot, and transitions may
+                    // have passed while the device was off
+                    ThemeScheduler.catchUp(context, done);
+                }
+            });
+        } else if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+            // After unlock this picks up a schedule that could only be
+            // migrated then
+            ReceiverWorker.execute(action, goAsync(), new ReceiverWorker.Task() {
+                @Override
+                public void run(Runnable done) {
+                    ThemeScheduler.catchUp(context, done);
+                }
+            });
+        } else if (Intent.ACTION_TIME_CHANGED.equals(action)
+                || Intent.ACTION_TIMEZONE_CHANGED.equals(action)) {
+            ReceiverWorker.execute(action, goAsync(), new ReceiverWorker.Task() {
+                @Override
+                public void run(Runnable done) {
+                    ThemeScheduler.onClockChanged(context, done);
+                }
+            });
+        }
+    }
+}
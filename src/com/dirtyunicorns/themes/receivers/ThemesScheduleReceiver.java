@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.receivers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.dirtyunicorns.themes.utils.ReceiverWorker;
+import com.dirtyunicorns.themes.utils.ThemeScheduler;
+
+public class ThemesScheduleReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        if (ThemeScheduler.ACTION_TRANSITION.equals(intent.getAction())) {
+            ReceiverWorker.execute("Schedule transition", goAsync(), new ReceiverWorker.Task() {
+                @Override
+                public void run(Runnable done) {
+                    ThemeScheduler.onTransition(context, intent, done);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.ArrayMap;
+
+/**
+ * Single background writer for overlay changes. Work is queued per category
+ * and a request that is still waiting is replaced by a newer one for the
+ * same category, so only the latest selection reaches the overlay manager.
+ */
+public class OverlayApplyQueue {
+
+    private static final String TAG = "OverlayApplyQueue";
+
+    private static OverlayApplyQueue sInstance;
+
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayMap<String, Request> mPending = new ArrayMap<>();
+
+    private OverlayApplyQueue() {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public static synchronized OverlayApplyQueue get() {
+        if (sInstance == null) {
+            sInstance = new OverlayApplyQueue();
+        }
+        return sInstance;
+    }
+
+    public void enqueue(String category, Runnable apply) {
+        enqueue(category, apply, null);
+    }
+
+    /**
+     * Queues apply for the category and posts onApplied to the main thread
+     * once it ran. A request replaced before it ran gets no callback.
+     */
+    public void enqueue(final String category, Runnable apply, Runnable onApplied) {
+        synchronized (mPending) {
+            boolean scheduled = mPending.containsKey(category);
+            mPending.put(category, new Request(apply, onApplied));
+            if (scheduled) {
+                return;
+            }
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Request request;
+                synchronized (mPending) {
+                    request = mPending.remove(category);
+                }
+                if (request == null) {
+                    return;
+                }
+                request.apply.run();
+                if (request.onApplied != null) {
+                    mMainHandler.post(request.onApplied);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs work on the queue thread after a delay, ordered with the queued
+     * applies but never coalesced with them.
+     */
+    void postDelayed(Runnable work, long delayMillis) {
+        mHandler.postDelayed(work, delayMillis);
+    }
+
+    private static final class Request {
+        final Runnable apply;
+        final Runnable onApplied;
+
+        Request(Runnable apply, Runnable onApplied) {
+            this.apply = apply;
+            this.onApplied = onApplied;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Settings;
+import android.util.ArraySet;
+
+/**
+ * Index of the category overlays installed on this build. It is persisted
+ * with the last update time of every overlay package and only touched again
+ * for packages the package manager reports as added, removed or replaced.
+ */
+public class OverlayCatalog {
+
+    private static final String PREFS_NAME = "overlay_catalog";
+    private static final String KEY_FINGERPRINT = "catalog_fingerprint";
+    private static final String KEY_BOOT_COUNT = "catalog_boot_count";
+    private static final String KEY_SEQUENCE = "catalog_sequence";
+    private static final String KEY_PACKAGE_PREFIX = "package:";
+
+    private static final Object sLock = new Object();
+    private static OverlayCatalog sInstance;
+
+    private final ArraySet<String> mAvailable = new ArraySet<>();
+
+    public interface Callback {
+        void onReady(OverlayCatalog catalog);
+    }
+
+    private OverlayCatalog() {
+    }
+
+    /**
+     * Loads or syncs the catalog on the apply queue thread, a rebuild takes
+     * one package manager call per overlay. The callback runs on the main
+     * thread. Not coalesced, every caller gets its callback.
+     */
+    public static void refresh(Context context, final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        OverlayApplyQueue.get().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                final OverlayCatalog catalog = get(appContext);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReady(catalog);
+                    }
+                });
+            }
+        }, 0);
+    }
+
+    /**
+     * Blocks on package manager calls, use {@link #refresh} on the main
+     * thread.
+     */
+    public static OverlayCatalog get(Context context) {
+        synchronized (sLock) {
+            Context appContext = context.getApplicationContext();
+            if (sInstance == null) {
+                sInstance = new OverlayCatalog();
+                sInstance.load(appContext);
+            } else {
+                sInstance.sync(appContext);
+            }
+            return sInstance;
+        }
+    }
+
+    public boolean isAvailable(String packageName) {
+        synchronized (sLock) {
+            return mAvailable.contains(packageName);
+        }
+    }
+
+    private void load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            rebuild(context, prefs);
+            return;
+        }
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(KEY_PACKAGE_PREFIX)) {
+                mAvailable.add(key.substring(KEY_PACKAGE_PREFIX.length()));
+            }
+        }
+        sync(context);
+    }
+
+    /**
+     * Applies the packages changed since the stored sequence number. The
+     * sequence restarts on every boot, so a different boot count means
+     * everything changed since this boot started has to be looked at.
+     */
+    private void sync(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        int bootCount = getBootCount(context);
+        int sequence = bootCount == prefs.getInt(KEY_BOOT_COUNT, -1)
+                ? prefs.getInt(KEY_SEQUENCE, 0) : 0;
+        ChangedPackages changed = context.getPackageManager().getChangedPackages(sequence);
+        if (changed == null) {
+            if (bootCount != prefs.getInt(KEY_BOOT_COUNT, -1)) {
+                prefs.edit().putInt(KEY_BOOT_COUNT, bootCount).putInt(KEY_SEQUENCE, 0).apply();
+            }
+            return;
+        }
+
+        ArraySet<String> catalogued = getCataloguedPackages();
+        SharedPreferences.Editor editor = prefs.edit();
+        PackageManager pm = context.getPackageManager();
+        for (String packageName : changed.getPackageNames()) {
+            if (catalogued.contains(packageName)) {
+                index(pm, packageName, prefs, editor);
+            }
+        }
+        editor.putInt(KEY_BOOT_COUNT, bootCount)
+                .putInt(KEY_SEQUENCE, changed.getSequenceNumber())
+                .apply();
+    }
+
+    private void rebuild(Context context, SharedPreferences prefs) {
+        PackageManager pm = context.getPackageManager();
+        SharedPreferences.Editor editor = prefs.edit().clear();
+        mAvailable.clear();
+        for (String packageName : getCataloguedPackages()) {
+            index(pm, packageName, null, editor);
+        }
+        int bootCount = getBootCount(context);
+        ChangedPackages changed = pm.getChangedPackages(0);
+        editor.putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                .putInt(KEY_BOOT_COUNT, bootCount)
+                .putInt(KEY_SEQUENCE, changed != null ? changed.getSequenceNumber() : 0)
+                .apply();
+    }
+
+    /**
+     * Records the package with its update time, skipping the write when the
+     * stored time already matches. A null prefs forces the write.
+     */
+    private void index(PackageManager pm, String packageName, SharedPreferences prefs,
+            SharedPreferences.Editor editor) {
+        String key = KEY_PACKAGE_PREFIX + packageName;
+        try {
+            PackageInfo info = pm.getPackageInfo(packageName, 0);
+            if (prefs == null || prefs.getLong(key, -1) != info.lastUpdateTime) {
+                editor.putLong(key, info.lastUpdateTime);
+            }
+            mAvailable.add(packageName);
+        } catch (PackageManager.NameNotFoundException e) {
+            editor.remove(key);
+            mAvailable.remove(packageName);
+        }
+    }
+
+    private static ArraySet<String> getCataloguedPackages() {
+        ArraySet<String> packages = new ArraySet<>();
+        for (OverlayCategory category : OverlayCategory.ALL) {
+            for (String overlay : category.getOverlays()) {
+                packages.add(overlay);
+            }
+        }
+        return packages;
+    }
+
+    private static int getBootCount(Context context) {
+        return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, 0);
+    }
+}
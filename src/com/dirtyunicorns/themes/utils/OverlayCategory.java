@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.Themes.PREF_ADAPTIVE_ICON_SHAPE;
+import static com.dirtyunicorns.themes.Themes.PREF_FONT_PICKER;
+import static com.dirtyunicorns.themes.Themes.PREF_QS_HEADER_STYLE;
+import static com.dirtyunicorns.themes.Themes.PREF_ROUNDED_CORNER;
+import static com.dirtyunicorns.themes.Themes.PREF_SB_HEIGHT;
+import static com.dirtyunicorns.themes.Themes.PREF_STATUSBAR_ICONS;
+import static com.dirtyunicorns.themes.Themes.PREF_SWITCH_STYLE;
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_NAVBAR_STYLE;
+import static com.dirtyunicorns.themes.Themes.PREF_TILE_STYLE;
+
+import com.android.internal.util.du.ThemesUtils;
+
+/**
+ * A group of mutually exclusive overlays and the preference that selects one
+ * of them. Positions index into the overlay array, -1 is the default.
+ */
+public final class OverlayCategory {
+
+    /** Preference value is the position plus two, "1" is the default. */
+    public static final int TYPE_LIST = 0;
+    /** Preference value is the position itself, "0" is the default. */
+    public static final int TYPE_TILE = 1;
+    /** Preference value is the overlay package name. */
+    public static final int TYPE_PACKAGE = 2;
+
+    public static final OverlayCategory FONT =
+            new OverlayCategory(PREF_FONT_PICKER, TYPE_LIST, ThemesUtils.FONTS);
+    public static final OverlayCategory ADAPTIVE_ICON_SHAPE =
+            new OverlayCategory(PREF_ADAPTIVE_ICON_SHAPE, TYPE_LIST, ThemesUtils.ADAPTIVE_ICON_SHAPE);
+    public static final OverlayCategory STATUSBAR_ICONS =
+            new OverlayCategory(PREF_STATUSBAR_ICONS, TYPE_LIST, ThemesUtils.STATUSBAR_ICONS);
+    public static final OverlayCategory QS_HEADER_STYLE =
+            new OverlayCategory(PREF_QS_HEADER_STYLE, TYPE_LIST, ThemesUtils.QS_HEADER_THEMES);
+    public static final OverlayCategory SWITCH_STYLE =
+            new OverlayCategory(PREF_SWITCH_STYLE, TYPE_LIST, ThemesUtils.SWITCH_STYLE);
+    public static final OverlayCategory ROUNDED_CORNER =
+            new OverlayCategory(PREF_ROUNDED_CORNER, TYPE_LIST, ThemesUtils.UI_RADIUS);
+    public static final OverlayCategory STATUSBAR_HEIGHT =
+            new OverlayCategory(PREF_SB_HEIGHT, TYPE_LIST, ThemesUtils.STATUSBAR_HEIGHT);
+    public static final OverlayCategory QS_TILE_STYLE =
+            new OverlayCategory(PREF_TILE_STYLE, TYPE_TILE, ThemesUtils.QS_TILE_THEMES);
+    public static final OverlayCategory NAVBAR_STYLE =
+            new OverlayCategory(PREF_THEME_NAVBAR_STYLE, TYPE_PACKAGE, ThemesUtils.NAVBAR_STYLES);
+
+    public static final OverlayCategory[] ALL = {
+            FONT,
+            ADAPTIVE_ICON_SHAPE,
+            STATUSBAR_ICONS,
+            QS_HEADER_STYLE,
+            SWITCH_STYLE,
+            ROUNDED_CORNER,
+            STATUSBAR_HEIGHT,
+            QS_TILE_STYLE,
+            NAVBAR_STYLE
+    };
+
+    private final String mKey;
+    private final int mType;
+    private final String[] mOverlays;
+
+    private OverlayCategory(String key, int type, String[] overlays) {
+        mKey = key;
+        mType = type;
+        mOverlays = overlays;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public String[] getOverlays() {
+        return mOverlays;
+    }
+
+    public String getDefaultValue() {
+        switch (mType) {
+            case TYPE_TILE:
+                return "0";
+            case TYPE_PACKAGE:
+                return "default";
+            default:
+                return "1";
+        }
+    }
+
+    public int positionFromValue(String value) {
+        if (value == null) {
+            return -1;
+        }
+        switch (mType) {
+            case TYPE_TILE:
+                int tile = Integer.parseInt(value);
+                return tile > 0 ? tile : -1;
+            case TYPE_PACKAGE:
+                for (int i = 0; i < mOverlays.length; i++) {
+                    if (mOverlays[i].equals(value)) {
+                        return i;
+                    }
+                }
+                return -1;
+            default:
+                return Integer.parseInt(value) - 2;
+        }
+    }
+
+    /**
+     * Adds the selection of a preference value to a transaction: every
+     * overlay of the category off, then the selected one on.
+     */
+    public OverlayTransaction applyTo(OverlayTransaction transaction, String value) {
+        transaction.disable(mOverlays);
+        int position = positionFromValue(value);
+        if (position >= 0 && position < mOverlays.length) {
+            transaction.enable(mOverlays[position]);
+        }
+        return transaction;
+    }
+
+    public String valueFromPosition(int position) {
+        if (position < 0) {
+            return getDefaultValue();
+        }
+        switch (mType) {
+            case TYPE_TILE:
+                return String.valueOf(position);
+            case TYPE_PACKAGE:
+                return mOverlays[position];
+            default:
+                return String.valueOf(position + 2);
+        }
+    }
+}
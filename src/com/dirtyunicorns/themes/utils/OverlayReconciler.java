@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.Context;
+import android.content.om.IOverlayManager;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the observed overlay state against what a transaction asked for
+ * and retries only the operations that diverged, with exponential backoff.
+ * A package written by a newer transaction is left to that transaction.
+ */
+public class OverlayReconciler {
+
+    private static final String TAG = "OverlayReconciler";
+
+    private static final long BASE_DELAY_MS = 250;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final AtomicLong sNextToken = new AtomicLong();
+    private static final ConcurrentHashMap<String, Long> sOwners = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger sAttempts = new AtomicInteger();
+    private static final AtomicInteger sRetries = new AtomicInteger();
+    private static final AtomicInteger sFailures = new AtomicInteger();
+
+    private OverlayReconciler() {
+    }
+
+    /**
+     * Makes the caller the latest writer of the given packages and returns
+     * the token that later reconcile passes are checked against.
+     */
+    static long claim(int userId, Collection<String> packageNames) {
+        long token = sNextToken.incrementAndGet();
+        for (String packageName : packageNames) {
+            sOwners.put(getOwnerKey(userId, packageName), token);
+        }
+        sAttempts.addAndGet(packageNames.size());
+        return token;
+    }
+
+    static void schedule(int userId, Map<String, Boolean> targets, long token) {
+        if (!targets.isEmpty()) {
+            post(userId, new LinkedHashMap<>(targets), token, 0);
+        }
+    }
+
+    public static int getAttempts() {
+        return sAttempts.get();
+    }
+
+    public static int getRetries() {
+        return sRetries.get();
+    }
+
+    public static int getFailures() {
+        return sFailures.get();
+    }
+
+    private static String getOwnerKey(int userId, String packageName) {
+        return userId + ":" + packageName;
+    }
+
+    private static void post(final int userId, final LinkedHashMap<String, Boolean> targets,
+            final long token, final int attempt) {
+        OverlayApplyQueue.get().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                reconcile(userId, targets, token, attempt);
+            }
+        }, BASE_DELAY_MS << attempt);
+    }
+
+    private static void reconcile(int userId, LinkedHashMap<String, Boolean> targets,
+            long token, int attempt) {
+        IOverlayManager overlayManager = IOverlayManager.Stub.asInterface(
+                ServiceManager.getService(Context.OVERLAY_SERVICE));
+        Map<String, Boolean> observed = overlayManager != null
+                ? OverlayState.query(overlayManager, userId).asMap() : null;
+
+        LinkedHashMap<String, Boolean> diverged = new LinkedHashMap<>();
+        for (Map.Entry<String, Boolean> target : targets.entrySet()) {
+            Long owner = sOwners.get(getOwnerKey(userId, target.getKey()));
+            if (owner == null || owner != token) {
+                continue;
+            }
+            Boolean enabled = observed != null ? observed.get(target.getKey()) : null;
+            if (observed == null || (enabled != null && enabled != target.getValue())) {
+                diverged.put(target.getKey(), target.getValue());
+            }
+        }
+        if (diverged.isEmpty()) {
+            return;
+        }
+
+        if (attempt + 1 >= MAX_ATTEMPTS) {
+            sFailures.addAndGet(diverged.size());
+            Log.e(TAG, "Giving up on " + diverged.keySet() + " of user " + userId
+                    + " after " + MAX_ATTEMPTS
+                    + " attempts (applies=" + sAttempts.get() + ", retries=" + sRetries.get()
+                    + ", failures=" + sFailures.get() + ")");
+            return;
+        }
+
+        LinkedHashMap<String, Boolean> applied = new LinkedHashMap<>();
+        if (overlayManager != null) {
+            for (Map.Entry<String, Boolean> operation : diverged.entrySet()) {
+                sRetries.incrementAndGet();
+                try {
+                    overlayManager.setEnabled(operation.getKey(), operation.getValue(), userId);
+                    applied.put(operation.getKey(), operation.getValue());
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Retry " + (attempt + 1) + " of " + operation.getKey() + " failed", e);
+                }
+            }
+        }
+        OverlayState.update(userId, applied);
+        post(userId, diverged, token, attempt + 1);
+    }
+}
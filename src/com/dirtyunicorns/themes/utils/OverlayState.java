@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.om.IOverlayManager;
+import android.content.om.OverlayInfo;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of which overlays are installed and enabled for a user,
+ * built from a single overlay manager query and shared by the whole process
+ * until an overlay actually changes.
+ */
+public class OverlayState {
+
+    private static final String TAG = "OverlayState";
+
+    private static final Object sLock = new Object();
+    private static final SparseArray<OverlayState> sSnapshots = new SparseArray<>();
+    private static boolean sReceiverRegistered;
+    private static int sInvalidations;
+
+    private final ArrayMap<String, Boolean> mEnabled;
+
+    private OverlayState(ArrayMap<String, Boolean> enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Returns the snapshot of the current user.
+     */
+    public static OverlayState get(Context context) {
+        return get(context, ActivityManager.getCurrentUser());
+    }
+
+    public static OverlayState get(Context context, int userId) {
+        int invalidations;
+        synchronized (sLock) {
+            if (context != null && !sReceiverRegistered) {
+                IntentFilter filter = new IntentFilter(Intent.ACTION_OVERLAY_CHANGED);
+                filter.addDataScheme("package");
+                context.getApplicationContext().registerReceiverAsUser(sOverlayChangedReceiver,
+                        UserHandle.ALL, filter, null, null);
+                sReceiverRegistered = true;
+            }
+            OverlayState snapshot = sSnapshots.get(userId);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            invalidations = sInvalidations;
+        }
+        // Query outside the lock, writers for other users shouldn't wait on it
+        OverlayState state = query(IOverlayManager.Stub.asInterface(
+                ServiceManager.getService(Context.OVERLAY_SERVICE)), userId);
+        if (state.mEnabled == null) {
+            // Don't cache a failed query, the next reader tries again
+            return state;
+        }
+        synchronized (sLock) {
+            if (invalidations != sInvalidations) {
+                // An overlay changed while querying, the result may be stale
+                return state;
+            }
+            OverlayState snapshot = sSnapshots.get(userId);
+            if (snapshot == null) {
+                sSnapshots.put(userId, state);
+                snapshot = state;
+            }
+            return snapshot;
+        }
+    }
+
+    public static void invalidate() {
+        synchronized (sLock) {
+            sInvalidations++;
+            sSnapshots.clear();
+        }
+    }
+
+    public static void invalidate(int userId) {
+        synchronized (sLock) {
+            sInvalidations++;
+            sSnapshots.remove(userId);
+        }
+    }
+
+    /**
+     * Records overlay states this process has just written, so readers see
+     * them without waiting for the overlay changed broadcast.
+     */
+    static void update(int userId, Map<String, Boolean> changes) {
+        synchronized (sLock) {
+            OverlayState snapshot = sSnapshots.get(userId);
+            if (snapshot == null) {
+                return;
+            }
+            ArrayMap<String, Boolean> enabled = new ArrayMap<>(snapshot.mEnabled);
+            for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+                if (enabled.containsKey(change.getKey())) {
+                    enabled.put(change.getKey(), change.getValue());
+                }
+            }
+            sSnapshots.put(userId, new OverlayState(enabled));
+        }
+    }
+
+    static OverlayState query(IOverlayManager overlayManager, int userId) {
+        if (overlayManager == null) {
+            // The overlay service is not published yet early during boot
+            Log.w(TAG, "Overlay service unavailable");
+            return new OverlayState(null);
+        }
+        ArrayMap<String, Boolean> enabled = new ArrayMap<>();
+        try {
+            Map<String, List<OverlayInfo>> overlays = overlayManager.getAllOverlays(userId);
+            for (List<OverlayInfo> infos : overlays.values()) {
+                for (OverlayInfo info : infos) {
+                    enabled.put(info.packageName, info.isEnabled());
+                }
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to query overlay state of user " + userId, e);
+            return new OverlayState(null);
+        }
+        return new OverlayState(enabled);
+    }
+
+    public boolean isInstalled(String packageName) {
+        return mEnabled != null && mEnabled.containsKey(packageName);
+    }
+
+    public boolean isEnabled(String packageName) {
+        Boolean enabled = mEnabled != null ? mEnabled.get(packageName) : null;
+        return enabled != null && enabled;
+    }
+
+    /**
+     * Returns the index of the enabled overlay in the given category, or -1
+     * when none of them is enabled.
+     */
+    public int getPosition(String[] overlays) {
+        for (int i = overlays.length - 1; i >= 0; i--) {
+            if (isEnabled(overlays[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getEnabled(String[] overlays) {
+        int position = getPosition(overlays);
+        return position != -1 ? overlays[position] : null;
+    }
+
+    /**
+     * Returns the package to enabled state map, or null if the overlay
+     * manager could not be queried.
+     */
+    Map<String, Boolean> asMap() {
+        return mEnabled;
+    }
+
+    private static final BroadcastReceiver sOverlayChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int userId = getSendingUserId();
+            if (userId == UserHandle.USER_ALL) {
+                invalidate();
+            } else {
+                invalidate(userId);
+            }
+        }
+    };
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.app.ActivityManager;
+import android.app.UiModeManager;
+import android.content.Context;
+import android.content.om.IOverlayManager;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the overlay changes of a single user action and commits only the
+ * ones that differ from the current overlay state, with night mode set once.
+ */
+public class OverlayTransaction {
+
+    private static final String TAG = "OverlayTransaction";
+
+    public static final int NIGHT_MODE_UNCHANGED = -1;
+
+    private static final int FAN_OUT_THREADS = 4;
+    private static ExecutorService sFanOutExecutor;
+
+    private final IOverlayManager mOverlayManager;
+    private final ArrayMap<String, Boolean> mTargets = new ArrayMap<>();
+    private int mNightMode = NIGHT_MODE_UNCHANGED;
+    private String mScope;
+    private long mGeneration;
+    private int[] mUsers;
+    private long mReplayId;
+
+    public OverlayTransaction(IOverlayManager overlayManager) {
+        mOverlayManager = overlayManager;
+    }
+
+    public OverlayTransaction enable(String packageName) {
+        mTargets.put(packageName, true);
+        return this;
+    }
+
+    public OverlayTransaction enable(String[] packageNames) {
+        for (String packageName : packageNames) {
+            enable(packageName);
+        }
+        return this;
+    }
+
+    public OverlayTransaction disable(String packageName) {
+        mTargets.put(packageName, false);
+        return this;
+    }
+
+    public OverlayTransaction disable(String[] packageNames) {
+        for (String packageName : packageNames) {
+            disable(packageName);
+        }
+        return this;
+    }
+
+    public OverlayTransaction setNightMode(int mode) {
+        mNightMode = mode;
+        return this;
+    }
+
+    /**
+     * Sets the users to apply for, the current user when never called.
+     */
+    public OverlayTransaction setUsers(int[] userIds) {
+        mUsers = userIds != null && userIds.length > 0 ? userIds : null;
+        return this;
+    }
+
+    int[] getUsers() {
+        return mUsers != null ? mUsers : new int[] { ActivityManager.getCurrentUser() };
+    }
+
+    /**
+     * Ties the transaction to a generation stamped by {@link ThemeArbiter},
+     * it stops as soon as a newer request for the scope exists.
+     */
+    public OverlayTransaction setGeneration(String scope, long generation) {
+        mScope = scope;
+        mGeneration = generation;
+        return this;
+    }
+
+    /**
+     * Replays a journaled transaction under its own id instead of
+     * journaling it again, so its replay count carries over.
+     */
+    OverlayTransaction setReplayId(long id) {
+        mReplayId = id;
+        return this;
+    }
+
+    private boolean isSuperseded() {
+        return mScope != null && !ThemeArbiter.isCurrent(mScope, mGeneration);
+    }
+
+    public boolean isEmpty() {
+        return mTargets.isEmpty() && mNightMode == NIGHT_MODE_UNCHANGED;
+    }
+
+    /**
+     * Reduces the requested targets to the operations that actually change
+     * something. Disables are ordered before enables so two overlays of the
+     * same category are never enabled at the same time. A null state means
+     * it could not be queried and every target is applied.
+     */
+    LinkedHashMap<String, Boolean> plan(Map<String, Boolean> current) {
+        LinkedHashMap<String, Boolean> disables = new LinkedHashMap<>();
+        LinkedHashMap<String, Boolean> enables = new LinkedHashMap<>();
+        for (int i = 0; i < mTargets.size(); i++) {
+            String packageName = mTargets.keyAt(i);
+            boolean state = mTargets.valueAt(i);
+            Boolean enabled = current != null ? current.get(packageName) : Boolean.valueOf(!state);
+            if (enabled == null) {
+                // Not installed for this user, nothing to toggle
+                continue;
+            }
+            if (enabled != state) {
+                (state ? enables : disables).put(packageName, state);
+            }
+        }
+        disables.putAll(enables);
+        return disables;
+    }
+
+    /**
+     * Applies the transaction and returns the number of overlay operations
+     * the overlay manager accepted for all target users. Operations that
+     * don't stick are retried by {@link OverlayReconciler}.
+     */
+    public int commit(Context context) {
+        SparseIntArray results = commitForUsers(context);
+        int applied = 0;
+        for (int i = 0; i < results.size(); i++) {
+            applied += Math.max(results.valueAt(i), 0);
+        }
+        return applied;
+    }
+
+    /**
+     * Applies the transaction and returns the number of accepted operations
+     * per target user, -1 for a user whose apply did not finish. Every user
+     * but the first is applied on the fan-out pool, so applying to several
+     * profiles takes about as long as the slowest one.
+     */
+    public SparseIntArray commitForUsers(Context context) {
+        SparseIntArray results = new SparseIntArray();
+        if (isSuperseded()) {
+            return results;
+        }
+        UiModeManager uiModeManager = context != null
+                ? context.getSystemService(UiModeManager.class) : null;
+        int nightMode = NIGHT_MODE_UNCHANGED;
+        if (uiModeManager != null && mNightMode != NIGHT_MODE_UNCHANGED
+                && uiModeManager.getNightMode() != mNightMode) {
+            nightMode = mNightMode;
+        }
+
+        int[] users = getUsers();
+        SparseArray<LinkedHashMap<String, Boolean>> plans = new SparseArray<>();
+        LinkedHashMap<String, Boolean> journaled = new LinkedHashMap<>();
+        for (int userId : users) {
+            LinkedHashMap<String, Boolean> operations =
+                    plan(OverlayState.get(context, userId).asMap());
+            plans.put(userId, operations);
+            journaled.putAll(operations);
+        }
+        if (journaled.isEmpty() && nightMode == NIGHT_MODE_UNCHANGED) {
+            if (context != null && mReplayId != 0) {
+                // Already in place, nothing left to roll forward
+                ThemeJournal.complete(context, mReplayId);
+            }
+            return results;
+        }
+
+        long journalId = mReplayId != 0 ? mReplayId : context != null
+                ? ThemeJournal.begin(context, users, journaled, nightMode) : -1;
+        if (nightMode != NIGHT_MODE_UNCHANGED) {
+            uiModeManager.setNightMode(nightMode);
+        }
+        final IOverlayManager overlayManager = mOverlayManager != null ? mOverlayManager
+                : IOverlayManager.Stub.asInterface(
+                        ServiceManager.getService(Context.OVERLAY_SERVICE));
+
+        ArrayList<Future<Integer>> futures = new ArrayList<>(users.length - 1);
+        for (int i = 1; i < users.length; i++) {
+            final int userId = users[i];
+            final LinkedHashMap<String, Boolean> operations = plans.get(userId);
+            futures.add(getFanOutExecutor().submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return apply(overlayManager, userId, operations);
+                }
+            }));
+        }
+        results.put(users[0], apply(overlayManager, users[0], plans.get(users[0])));
+        for (int i = 1; i < users.length; i++) {
+            try {
+                results.put(users[i], futures.get(i - 1).get());
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Failed to apply for user " + users[i], e.getCause());
+                results.put(users[i], -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.put(users[i], -1);
+            }
+        }
+
+        // A user whose apply did not finish leaves the transaction pending,
+        // so it is rolled forward on the next start
+        boolean finished = true;
+        for (int i = 0; i < results.size(); i++) {
+            if (results.valueAt(i) < 0) {
+                finished = false;
+            }
+        }
+        if (context != null) {
+            if (finished) {
+                ThemeJournal.complete(context, journalId);
+            }
+            ThemeBackup.dataChanged(context);
+        }
+        return results;
+    }
+
+    private int apply(IOverlayManager overlayManager, int userId,
+            LinkedHashMap<String, Boolean> operations) {
+        if (operations.isEmpty()) {
+            return 0;
+        }
+        long token = OverlayReconciler.claim(userId, operations.keySet());
+        LinkedHashMap<String, Boolean> applied = new LinkedHashMap<>();
+        LinkedHashMap<String, Boolean> attempted = new LinkedHashMap<>();
+        for (Map.Entry<String, Boolean> operation : operations.entrySet()) {
+            if (isSuperseded()) {
+                Log.d(TAG, "Generation " + mGeneration + " of " + mScope + " superseded");
+                break;
+            }
+            attempted.put(operation.getKey(), operation.getValue());
+            if (overlayManager == null) {
+                continue;
+            }
+            try {
+                overlayManager.setEnabled(operation.getKey(), operation.getValue(), userId);
+                applied.put(operation.getKey(), operation.getValue());
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to set " + operation.getKey() + " to " + operation.getValue()
+                        + " for user " + userId + ", will retry", e);
+            }
+        }
+        OverlayState.update(userId, applied);
+        OverlayReconciler.schedule(userId, attempted, token);
+        return applied.size();
+    }
+
+    private static synchronized ExecutorService getFanOutExecutor() {
+        if (sFanOutExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(FAN_OUT_THREADS,
+                    FAN_OUT_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            sFanOutExecutor = executor;
+        }
+        return sFanOutExecutor;
+    }
+}
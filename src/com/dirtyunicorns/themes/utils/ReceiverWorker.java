@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.BroadcastReceiver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves the work of a broadcast off the main thread. The broadcast is kept
+ * pending with goAsync() until the work reports it is done, or until a
+ * timeout well below the broadcast ANR limit, whichever comes first.
+ */
+public final class ReceiverWorker {
+
+    private static final String TAG = "ReceiverWorker";
+
+    /**
+     * Boot, alarm and clock broadcasts go out on the background queue,
+     * which allows 60 seconds before an ANR. A pending result also holds
+     * up the receivers after this one, so give up well before that.
+     */
+    private static final long TIMEOUT_MS = 20000;
+
+    private static Handler sHandler;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static final AtomicInteger sCompleted = new AtomicInteger();
+    private static final AtomicInteger sTimedOut = new AtomicInteger();
+    private static final AtomicInteger sFailed = new AtomicInteger();
+
+    public interface Task {
+        /**
+         * Runs on the worker thread, done has to be run once everything the
+         * broadcast started is finished, from any thread.
+         */
+        void run(Runnable done);
+    }
+
+    private ReceiverWorker() {
+    }
+
+    public static void execute(final String name, final BroadcastReceiver.PendingResult result,
+            final Task task) {
+        final long start = SystemClock.elapsedRealtime();
+        final AtomicBoolean finished = new AtomicBoolean();
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if (finished.compareAndSet(false, true)) {
+                    sTimedOut.incrementAndGet();
+                    Log.w(TAG, name + " timed out after " + TIMEOUT_MS + "ms" + getCounts());
+                    result.finish();
+                }
+            }
+        };
+        final Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                if (finished.compareAndSet(false, true)) {
+                    sMainHandler.removeCallbacks(timeout);
+                    sCompleted.incrementAndGet();
+                    Log.d(TAG, name + " done in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                    result.finish();
+                }
+            }
+        };
+        sMainHandler.postDelayed(timeout, TIMEOUT_MS);
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run(done);
+                } catch (RuntimeException e) {
+                    if (finished.compareAndSet(false, true)) {
+                        sMainHandler.removeCallbacks(timeout);
+                        sFailed.incrementAndGet();
+                        Log.e(TAG, name + " failed" + getCounts(), e);
+                        result.finish();
+                    }
+                }
+            }
+        });
+    }
+
+    public static int getCompleted() {
+        return sCompleted.get();
+    }
+
+    public static int getTimedOut() {
+        return sTimedOut.get();
+    }
+
+    public static int getFailed() {
+        return sFailed.get();
+    }
+
+    private static String getCounts() {
+        return " (completed=" + sCompleted.get() + ", timed out=" + sTimedOut.get()
+                + ", failed=" + sFailed.get() + ")";
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+}
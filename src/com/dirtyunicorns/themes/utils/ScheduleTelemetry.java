@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Histogram of how late scheduled transitions fire. It is kept in its own
+ * preference file, the process rarely lives from one transition to the
+ * next.
+ */
+public final class ScheduleTelemetry {
+
+    private static final String TAG = "ScheduleTelemetry";
+
+    private static final String PREFS_NAME = "schedule_telemetry";
+    private static final String KEY_BUCKET = "drift_bucket_";
+    private static final String KEY_MAX = "drift_max";
+
+    /** Transitions later than this are logged as missing the window. */
+    public static final long TARGET_WINDOW_MS = 60 * 1000;
+
+    /** Upper bounds of the buckets, the last one is open. */
+    private static final long[] BUCKETS_MS = {
+            1000, 5000, 30 * 1000, TARGET_WINDOW_MS, 5 * 60 * 1000, 15 * 60 * 1000
+    };
+
+    private ScheduleTelemetry() {
+    }
+
+    public static void record(Context context, long scheduled, long actual) {
+        long drift = Math.max(0, actual - scheduled);
+        int bucket = getBucket(drift);
+        SharedPreferences prefs = getPreferences(context);
+        prefs.edit()
+                .putInt(KEY_BUCKET + bucket, prefs.getInt(KEY_BUCKET + bucket, 0) + 1)
+                .putLong(KEY_MAX, Math.max(drift, prefs.getLong(KEY_MAX, 0)))
+                .apply();
+        if (drift > TARGET_WINDOW_MS) {
+            Log.w(TAG, "Transition fired " + drift + "ms late, " + dump(context));
+        }
+    }
+
+    /**
+     * Returns the count of every bucket, the last one holds everything past
+     * the largest bound.
+     */
+    public static int[] getHistogram(Context context) {
+        SharedPreferences prefs = getPreferences(context);
+        int[] histogram = new int[BUCKETS_MS.length + 1];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = prefs.getInt(KEY_BUCKET + i, 0);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the share of transitions that landed within the target
+     * window, or 1 if none was recorded yet.
+     */
+    public static float getWithinTarget(Context context) {
+        int[] histogram = getHistogram(context);
+        int total = 0;
+        int within = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            total += histogram[i];
+            if (i < BUCKETS_MS.length && BUCKETS_MS[i] <= TARGET_WINDOW_MS) {
+                within += histogram[i];
+            }
+        }
+        return total > 0 ? (float) within / total : 1f;
+    }
+
+    public static String dump(Context context) {
+        int[] histogram = getHistogram(context);
+        StringBuilder builder = new StringBuilder("drift");
+        for (int i = 0; i < histogram.length; i++) {
+            builder.append(i < BUCKETS_MS.length ? " <" + BUCKETS_MS[i] : " >=" + BUCKETS_MS[i - 1])
+                    .append("ms:").append(histogram[i]);
+        }
+        return builder.append(", max ").append(getPreferences(context).getLong(KEY_MAX, 0))
+                .append("ms, within target ").append(getWithinTarget(context)).toString();
+    }
+
+    private static int getBucket(long drift) {
+        for (int i = 0; i < BUCKETS_MS.length; i++) {
+            if (drift < BUCKETS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKETS_MS.length;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return Utils.getDeviceProtectedPreferences(context, PREFS_NAME);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Orders the theme writers of this process. Every request is stamped with a
+ * generation when it is made, and a transaction still running for an older
+ * generation of the same scope stops before its next overlay call.
+ */
+public final class ThemeArbiter {
+
+    private static final AtomicLong sGeneration = new AtomicLong();
+    private static final ConcurrentHashMap<String, AtomicLong> sLatest =
+            new ConcurrentHashMap<>();
+
+    private ThemeArbiter() {
+    }
+
+    /**
+     * Returns a new generation for the scope, superseding every request
+     * stamped for it before.
+     */
+    public static long stamp(String scope) {
+        long generation = sGeneration.incrementAndGet();
+        AtomicLong latest = getLatest(scope);
+        long current;
+        do {
+            current = latest.get();
+            if (current >= generation) {
+                break;
+            }
+        } while (!latest.compareAndSet(current, generation));
+        return generation;
+    }
+
+    public static boolean isCurrent(String scope, long generation) {
+        return getLatest(scope).get() == generation;
+    }
+
+    private static AtomicLong getLatest(String scope) {
+        AtomicLong latest = sLatest.get(scope);
+        if (latest == null) {
+            AtomicLong created = new AtomicLong();
+            latest = sLatest.putIfAbsent(scope, created);
+            if (latest == null) {
+                latest = created;
+            }
+        }
+        return latest;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_END_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_START_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULE;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_DAYS;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_THEME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_THEME_VALUE;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_REPEAT_DAILY;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_THEME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_THEME_VALUE;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_TOAST;
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_SWITCH;
+
+import android.app.backup.BackupManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.om.IOverlayManager;
+import android.os.ServiceManager;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Backup payload of the theme configuration and schedule.
+ *
+ * <pre>
+ * byte version, byte theme, int accent, byte n, n x UTF overlay package,
+ * byte flags, UTF schedule transitions, long schedule end
+ * </pre>
+ *
+ * Selections are stored by overlay package so a restore onto a build that
+ * orders its overlays differently still picks the same ones. A theme id of
+ * zero means unset.
+ */
+public final class ThemeBackup {
+
+    private static final int VERSION = 1;
+
+    private static final int FLAG_TOAST = 1;
+
+    private ThemeBackup() {
+    }
+
+    /**
+     * Tells the backup manager the payload changed. Called where the theme,
+     * accent or schedule is written.
+     */
+    public static void dataChanged(Context context) {
+        BackupManager.dataChanged(context.getPackageName());
+    }
+
+    public static byte[] write(Context context) throws IOException {
+        ThemeConfig config = ThemeConfig.capture(context);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        ArrayList<String> selected = new ArrayList<>();
+        for (OverlayCategory category : OverlayCategory.ALL) {
+            int position = config.getPosition(category);
+            String[] overlays = category.getOverlays();
+            if (position >= 0 && position < overlays.length) {
+                selected.add(overlays[position]);
+            }
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(VERSION);
+        out.writeByte(toId(config.getTheme()));
+        out.writeInt(config.getAccent());
+        out.writeByte(selected.size());
+        for (String overlay : selected) {
+            out.writeUTF(overlay);
+        }
+
+        ThemeSchedule schedule = ThemeSchedule.load(context);
+        out.writeByte(prefs.getBoolean(PREF_THEME_SCHEDULED_TOAST, true) ? FLAG_TOAST : 0);
+        out.writeUTF(schedule.encode());
+        out.writeLong(schedule.getUntil());
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Brings the device to the backed up state: one overlay transaction and
+     * settings write, one preference commit and one alarm registration.
+     */
+    public static void restore(Context context, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported theme backup version " + version);
+        }
+        String theme = fromId(in.readUnsignedByte());
+        ThemeConfig config = new ThemeConfig(0, in.readInt()).withTheme(theme);
+
+        ArrayMap<String, OverlayCategory> categories = new ArrayMap<>();
+        for (OverlayCategory category : OverlayCategory.ALL) {
+            for (String overlay : category.getOverlays()) {
+                categories.put(overlay, category);
+            }
+        }
+        int selected = in.readUnsignedByte();
+        for (int i = 0; i < selected; i++) {
+            String overlay = in.readUTF();
+            OverlayCategory category = categories.get(overlay);
+            if (category != null) {
+                config = config.withPosition(category, indexOf(category.getOverlays(), overlay));
+            }
+        }
+
+        int flags = in.readUnsignedByte();
+        ThemeSchedule schedule = ThemeSchedule.decode(in.readUTF(), in.readLong());
+
+        config.commitFrom(context, ThemeConfig.capture(context), IOverlayManager.Stub.asInterface(
+                ServiceManager.getService(Context.OVERLAY_SERVICE)));
+
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        if (theme != null) {
+            editor.putString(PREF_THEME_SWITCH, theme);
+        }
+        for (OverlayCategory category : OverlayCategory.ALL) {
+            editor.putString(category.getKey(), config.getValue(category));
+        }
+        // A schedule that ran its course before the backup is not brought back
+        boolean scheduled = schedule.getNextTime(System.currentTimeMillis()) >= 0;
+        editor.putString(PREF_THEME_SCHEDULE, scheduled ? "2" : "1");
+        if (scheduled) {
+            // The schedule screen shows the first two transitions as start and end
+            DateFormat timeFormat = android.text.format.DateFormat.getTimeFormat(context);
+            editor.putBoolean(PREF_THEME_SCHEDULED_REPEAT_DAILY, schedule.getUntil() == 0);
+            ArraySet<String> days = new ArraySet<>();
+            for (int day = Calendar.SUNDAY; day <= Calendar.SATURDAY; day++) {
+                if ((schedule.getDays(0) & ThemeSchedule.dayBit(day)) != 0) {
+                    days.add(String.valueOf(day));
+                }
+            }
+            editor.putStringSet(PREF_THEME_SCHEDULED_DAYS, days);
+            editor.putBoolean(PREF_THEME_SCHEDULED_TOAST, (flags & FLAG_TOAST) != 0);
+            editor.putString(PREF_THEME_SCHEDULED_START_THEME, schedule.getTheme(0));
+            editor.putString(PREF_THEME_SCHEDULED_START_THEME_VALUE, schedule.getTheme(0));
+            editor.putString(PREF_THEME_SCHEDULED_START_TIME,
+                    timeFormat.format(getTime(schedule.getMinute(0))));
+            editor.putLong(PREF_ALARM_START_TIME, getTime(schedule.getMinute(0)).getTime());
+            if (schedule.size() > 1) {
+                editor.putString(PREF_THEME_SCHEDULED_END_THEME, schedule.getTheme(1));
+                editor.putString(PREF_THEME_SCHEDULED_END_THEME_VALUE, schedule.getTheme(1));
+                editor.putString(PREF_THEME_SCHEDULED_END_TIME,
+                        timeFormat.format(getTime(schedule.getMinute(1))));
+                editor.putLong(PREF_ALARM_END_TIME, getTime(schedule.getMinute(1)).getTime());
+            }
+        }
+        editor.commit();
+
+        ThemeScheduler.save(context, scheduled ? schedule : ThemeSchedule.EMPTY);
+    }
+
+    private static Date getTime(int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, minute / 60);
+        calendar.set(Calendar.MINUTE, minute % 60);
+        return calendar.getTime();
+    }
+
+    private static int toId(String theme) {
+        return theme != null ? Integer.parseInt(theme) : 0;
+    }
+
+    private static String fromId(int id) {
+        return ThemePlan.get(String.valueOf(id)) != null ? String.valueOf(id) : null;
+    }
+
+    private static int indexOf(String[] overlays, String overlay) {
+        for (int i = 0; i < overlays.length; i++) {
+            if (overlays[i].equals(overlay)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
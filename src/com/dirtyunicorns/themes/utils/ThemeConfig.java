@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.Themes.DEFAULT_ACCENT_COLOR;
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_SWITCH;
+
+import android.app.UiModeManager;
+import android.content.Context;
+import android.content.om.IOverlayManager;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * Complete theme configuration packed into a long and the accent colour.
+ * The long holds the theme id and, for every {@link OverlayCategory}, the
+ * selected position plus one, so zero always means default. Comparing and
+ * diffing two configurations is a couple of word operations.
+ * <p>
+ * If the categories outgrow the long, the ones that do not fit always read
+ * as default and {@link #isSupported()} turns false, so undo and profiles
+ * are switched off instead of the app failing to start.
+ */
+public final class ThemeConfig {
+
+    private static final String TAG = "ThemeConfig";
+    private static final String SCOPE = "theme_config";
+
+    private static final int THEME_BITS = 4;
+    private static final long THEME_MASK = (1L << THEME_BITS) - 1;
+
+    private static final int[] SHIFTS = new int[OverlayCategory.ALL.length];
+    private static final long[] MASKS = new long[OverlayCategory.ALL.length];
+    private static final boolean SUPPORTED;
+
+    static {
+        int shift = THEME_BITS;
+        for (int i = 0; i < OverlayCategory.ALL.length; i++) {
+            int bits = 32 - Integer.numberOfLeadingZeros(
+                    OverlayCategory.ALL[i].getOverlays().length);
+            if (shift + bits <= Long.SIZE) {
+                SHIFTS[i] = shift;
+                MASKS[i] = ((1L << bits) - 1) << shift;
+            }
+            shift += bits;
+        }
+        SUPPORTED = shift <= Long.SIZE;
+        if (!SUPPORTED) {
+            Log.e(TAG, "Theme configuration needs " + shift + " bits, undo and profiles are off");
+        }
+    }
+
+    /** Light theme, every category at its default and the stock accent. */
+    public static final ThemeConfig DEFAULT = new ThemeConfig(1, DEFAULT_ACCENT_COLOR);
+
+    private final long mBits;
+    private final int mAccent;
+
+    public ThemeConfig(long bits, int accent) {
+        mBits = bits;
+        mAccent = accent;
+    }
+
+    /**
+     * Returns false if not every category fits in the packed long.
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    /**
+     * Reads the configuration that is applied right now.
+     */
+    public static ThemeConfig capture(Context context) {
+        return capture(context, OverlayState.get(context));
+    }
+
+    static ThemeConfig capture(Context context, OverlayState state) {
+        UiModeManager uiModeManager = context.getSystemService(UiModeManager.class);
+        ThemePlan plan = ThemePlan.match(state, uiModeManager != null
+                ? uiModeManager.getNightMode() : UiModeManager.MODE_NIGHT_NO);
+        long bits = Long.parseLong(plan.getId());
+        for (int i = 0; i < OverlayCategory.ALL.length; i++) {
+            int position = state.getPosition(OverlayCategory.ALL[i].getOverlays());
+            bits |= ((long) (position + 1) << SHIFTS[i]) & MASKS[i];
+        }
+        int accent = Settings.System.getIntForUser(context.getContentResolver(),
+                Settings.System.ACCENT_COLOR, DEFAULT_ACCENT_COLOR, UserHandle.USER_CURRENT);
+        return new ThemeConfig(bits, accent);
+    }
+
+    public long getBits() {
+        return mBits;
+    }
+
+    public int getAccent() {
+        return mAccent;
+    }
+
+    /**
+     * Returns the theme id, or null if none was recorded.
+     */
+    public String getTheme() {
+        int theme = (int) (mBits & THEME_MASK);
+        return theme != 0 ? String.valueOf(theme) : null;
+    }
+
+    public int getPosition(OverlayCategory category) {
+        int index = indexOf(category);
+        return (int) ((mBits & MASKS[index]) >>> SHIFTS[index]) - 1;
+    }
+
+    public String getValue(OverlayCategory category) {
+        return category.valueFromPosition(getPosition(category));
+    }
+
+    public ThemeConfig withTheme(String theme) {
+        long value = theme != null ? Long.parseLong(theme) & THEME_MASK : 0;
+        return new ThemeConfig((mBits & ~THEME_MASK) | value, mAccent);
+    }
+
+    public ThemeConfig withPosition(OverlayCategory category, int position) {
+        int index = indexOf(category);
+        long value = ((long) (position + 1) << SHIFTS[index]) & MASKS[index];
+        return new ThemeConfig((mBits & ~MASKS[index]) | value, mAccent);
+    }
+
+    public ThemeConfig withValue(OverlayCategory category, String value) {
+        return withPosition(category, category.positionFromValue(value));
+    }
+
+    public ThemeConfig withAccent(int accent) {
+        return new ThemeConfig(mBits, accent);
+    }
+
+    /**
+     * Adds what has to change to go from the given configuration to this one
+     * to a transaction. Only fields whose bits differ are touched.
+     */
+    public OverlayTransaction diffInto(ThemeConfig from, OverlayTransaction transaction) {
+        long diff = from != null ? from.mBits ^ mBits : -1L;
+        if ((diff & THEME_MASK) != 0) {
+            ThemePlan plan = ThemePlan.get(getTheme());
+            if (plan != null) {
+                plan.applyTo(transaction);
+            }
+        }
+        for (int i = 0; i < OverlayCategory.ALL.length; i++) {
+            if ((diff & MASKS[i]) != 0) {
+                OverlayCategory category = OverlayCategory.ALL[i];
+                category.applyTo(transaction, getValue(category));
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * Moves the device from the given configuration to this one: settings
+     * are written right away and the overlay changes are committed as one
+     * transaction on the apply queue.
+     */
+    public void applyFrom(Context context, ThemeConfig from, final IOverlayManager overlayManager,
+            Runnable onApplied) {
+        final Context appContext = context.getApplicationContext();
+        long diff = writeSettings(appContext, from);
+        if (diff == 0) {
+            if (onApplied != null) {
+                onApplied.run();
+            }
+            return;
+        }
+
+        supersede(diff);
+        final ThemeConfig previous = from;
+        final long generation = ThemeArbiter.stamp(SCOPE);
+        OverlayApplyQueue.get().enqueue(SCOPE, new Runnable() {
+            @Override
+            public void run() {
+                diffInto(previous, new OverlayTransaction(overlayManager)
+                        .setGeneration(SCOPE, generation)
+                        .setUsers(ThemeUsers.getTargets(appContext)))
+                        .commit(appContext);
+            }
+        }, onApplied);
+    }
+
+    /**
+     * Like {@link #applyFrom} but commits on the calling thread, for callers
+     * such as a backup restore that may not outlive the apply queue.
+     */
+    public void commitFrom(Context context, ThemeConfig from, IOverlayManager overlayManager) {
+        long diff = writeSettings(context, from);
+        if (diff == 0) {
+            return;
+        }
+        supersede(diff);
+        diffInto(from, new OverlayTransaction(overlayManager)
+                .setGeneration(SCOPE, ThemeArbiter.stamp(SCOPE))
+                .setUsers(ThemeUsers.getTargets(context)))
+                .commit(context);
+    }
+
+    /**
+     * Writes the accent and QS tile style if they changed and returns the
+     * bits that differ from the given configuration.
+     */
+    private long writeSettings(Context context, ThemeConfig from) {
+        long diff = from != null ? from.mBits ^ mBits : -1L;
+        if (from == null || from.mAccent != mAccent) {
+            Settings.System.putIntForUser(context.getContentResolver(),
+                    Settings.System.ACCENT_COLOR, mAccent, UserHandle.USER_CURRENT);
+            ThemeBackup.dataChanged(context);
+        }
+        if ((diff & MASKS[indexOf(OverlayCategory.QS_TILE_STYLE)]) != 0) {
+            Settings.System.putInt(context.getContentResolver(), Settings.System.QS_TILE_STYLE,
+                    Integer.parseInt(getValue(OverlayCategory.QS_TILE_STYLE)));
+        }
+        return diff;
+    }
+
+    /**
+     * Supersedes the single writers still queued for anything in the diff.
+     */
+    static void supersede(long diff) {
+        if ((diff & THEME_MASK) != 0) {
+            ThemeArbiter.stamp(PREF_THEME_SWITCH);
+        }
+        for (int i = 0; i < OverlayCategory.ALL.length; i++) {
+            if ((diff & MASKS[i]) != 0) {
+                ThemeArbiter.stamp(OverlayCategory.ALL[i].getKey());
+            }
+        }
+    }
+
+    private static int indexOf(OverlayCategory category) {
+        for (int i = 0; i < OverlayCategory.ALL.length; i++) {
+            if (OverlayCategory.ALL[i] == category) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown category " + category.getKey());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ThemeConfig)) {
+            return false;
+        }
+        ThemeConfig other = (ThemeConfig) o;
+        return mBits == other.mBits && mAccent == other.mAccent;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(mBits) + mAccent;
+    }
+
+    @Override
+    public String toString() {
+        return "ThemeConfig{" + Long.toHexString(mBits) + ", #" + Integer.toHexString(mAccent) + "}";
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+/**
+ * Bounded ring buffer of recent theme configurations for undo and redo.
+ * Configurations are stored as their packed primitives, recording a new one
+ * after an undo drops the redo tail and the oldest entry falls off once the
+ * buffer is full.
+ */
+public class ThemeHistory {
+
+    private static final int CAPACITY = 16;
+
+    private static ThemeHistory sInstance;
+
+    private final long[] mBits = new long[CAPACITY];
+    private final int[] mAccents = new int[CAPACITY];
+    // Index of the oldest entry, number of entries and offset of the current one
+    private int mStart;
+    private int mSize;
+    private int mCursor = -1;
+
+    public static synchronized ThemeHistory get() {
+        if (sInstance == null) {
+            sInstance = new ThemeHistory();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Makes the configuration the current entry, unless it already is.
+     */
+    public synchronized void record(ThemeConfig config) {
+        if (mCursor >= 0 && config.equals(getAt(mCursor))) {
+            return;
+        }
+        // Drop everything that could have been redone
+        mSize = mCursor + 1;
+        if (mSize == CAPACITY) {
+            mStart = (mStart + 1) % CAPACITY;
+            mSize--;
+        }
+        int slot = (mStart + mSize) % CAPACITY;
+        mBits[slot] = config.getBits();
+        mAccents[slot] = config.getAccent();
+        mSize++;
+        mCursor = mSize - 1;
+    }
+
+    public synchronized boolean canUndo() {
+        return mCursor > 0;
+    }
+
+    public synchronized boolean canRedo() {
+        return mCursor >= 0 && mCursor < mSize - 1;
+    }
+
+    /**
+     * Steps back and returns the configuration to go to, or null.
+     */
+    public synchronized ThemeConfig undo() {
+        if (!canUndo()) {
+            return null;
+        }
+        return getAt(--mCursor);
+    }
+
+    /**
+     * Steps forward and returns the configuration to go to, or null.
+     */
+    public synchronized ThemeConfig redo() {
+        if (!canRedo()) {
+            return null;
+        }
+        return getAt(++mCursor);
+    }
+
+    public synchronized ThemeConfig getCurrent() {
+        return mCursor >= 0 ? getAt(mCursor) : null;
+    }
+
+    private ThemeConfig getAt(int offset) {
+        int slot = (mStart + offset) % CAPACITY;
+        return new ThemeConfig(mBits[slot], mAccents[slot]);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.Context;
+import android.content.om.IOverlayManager;
+import android.os.ServiceManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only write-ahead journal for overlay transactions. The planned
+ * operations are synced to disk before the first overlay call and marked
+ * complete once every target user finished, so an apply cut short by a
+ * crash, reboot or failed user can be rolled forward on the next start.
+ * Every unfinished transaction is kept, compaction carries them over, and
+ * they are replayed oldest first. A transaction that still doesn't finish
+ * after {@link #MAX_REPLAYS} replays is given up.
+ */
+public class ThemeJournal {
+
+    private static final String TAG = "ThemeJournal";
+
+    private static final String JOURNAL_FILE = "theme_journal";
+    private static final long COMPACT_SIZE = 4096;
+    private static final int MAX_REPLAYS = 3;
+
+    private static final byte RECORD_BEGIN = 1;
+    private static final byte RECORD_COMPLETE = 2;
+    private static final byte RECORD_REPLAY = 3;
+
+    private static final Object sLock = new Object();
+    private static final AtomicLong sNextId = new AtomicLong(System.currentTimeMillis());
+
+    private ThemeJournal() {
+    }
+
+    /**
+     * Records the intended operations and returns the id to complete, or -1
+     * if the journal could not be written.
+     */
+    static long begin(Context context, int[] users, Map<String, Boolean> operations,
+            int nightMode) {
+        Pending record = new Pending(sNextId.incrementAndGet(), nightMode);
+        record.users = users;
+        record.operations.putAll(operations);
+        synchronized (sLock) {
+            File file = getFile(context);
+            if (file.length() >= COMPACT_SIZE) {
+                compact(context);
+            }
+            try (FileOutputStream fos = new FileOutputStream(file, true)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                writeBegin(out, record);
+                out.flush();
+                fos.getFD().sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to journal transaction", e);
+                return -1;
+            }
+        }
+        return record.id;
+    }
+
+    static void complete(Context context, long id) {
+        if (id == -1) {
+            return;
+        }
+        // No sync, a lost marker only replays an idempotent transaction
+        append(context, RECORD_COMPLETE, id, false);
+    }
+
+    /**
+     * Re-applies every transaction that was never marked complete, oldest
+     * first. Runs on the apply queue, so it is ordered with every other
+     * writer.
+     */
+    public static void recover(Context context) {
+        final Context appContext = context.getApplicationContext();
+        OverlayApplyQueue.get().enqueue(TAG, new Runnable() {
+            @Override
+            public void run() {
+                List<Pending> pending;
+                synchronized (sLock) {
+                    pending = readPending(appContext);
+                }
+                if (pending == null) {
+                    return;
+                }
+                IOverlayManager overlayManager = IOverlayManager.Stub.asInterface(
+                        ServiceManager.getService(Context.OVERLAY_SERVICE));
+                for (Pending record : pending) {
+                    if (record.replays >= MAX_REPLAYS) {
+                        Log.e(TAG, "Giving up on transaction " + record.id + " after "
+                                + record.replays + " replays");
+                        complete(appContext, record.id);
+                        continue;
+                    }
+                    // Counted before the apply, a replay that crashes counts too
+                    if (!append(appContext, RECORD_REPLAY, record.id, true)) {
+                        continue;
+                    }
+                    Log.i(TAG, "Rolling forward transaction " + record.id
+                            + " (replay " + (record.replays + 1) + ")");
+                    OverlayTransaction transaction = new OverlayTransaction(overlayManager);
+                    for (Map.Entry<String, Boolean> operation : record.operations.entrySet()) {
+                        if (operation.getValue()) {
+                            transaction.enable(operation.getKey());
+                        } else {
+                            transaction.disable(operation.getKey());
+                        }
+                    }
+                    // Completed by the commit once every user finished
+                    transaction.setUsers(record.users)
+                            .setNightMode(record.nightMode)
+                            .setReplayId(record.id)
+                            .commit(appContext);
+                }
+            }
+        });
+    }
+
+    private static boolean append(Context context, byte type, long id, boolean sync) {
+        synchronized (sLock) {
+            try (FileOutputStream fos = new FileOutputStream(getFile(context), true)) {
+                DataOutputStream out = new DataOutputStream(fos);
+                out.writeByte(type);
+                out.writeLong(id);
+                if (sync) {
+                    fos.getFD().sync();
+                }
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write record " + type + " of transaction " + id, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the unfinished transactions and their
+     * replay counts. Written to a temporary file and renamed over the
+     * journal, so a crash leaves either the old or the new one.
+     */
+    private static void compact(Context context) {
+        List<Pending> pending = readPending(context);
+        if (pending == null) {
+            // Unreadable, keep it for recovery rather than lose records
+            return;
+        }
+        File file = getFile(context);
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            for (Pending record : pending) {
+                writeBegin(out, record);
+                for (int i = 0; i < record.replays; i++) {
+                    out.writeByte(RECORD_REPLAY);
+                    out.writeLong(record.id);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact journal", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Failed to replace journal");
+            temp.delete();
+        }
+    }
+
+    private static void writeBegin(DataOutputStream out, Pending record) throws IOException {
+        out.writeByte(RECORD_BEGIN);
+        out.writeLong(record.id);
+        out.writeInt(record.nightMode);
+        out.writeByte(record.users.length);
+        for (int userId : record.users) {
+            out.writeInt(userId);
+        }
+        out.writeShort(record.operations.size());
+        for (Map.Entry<String, Boolean> operation : record.operations.entrySet()) {
+            out.writeUTF(operation.getKey());
+            out.writeBoolean(operation.getValue());
+        }
+    }
+
+    /**
+     * Returns the unfinished transactions oldest first, or null if the
+     * journal could not be read. Call with sLock held.
+     */
+    private static List<Pending> readPending(Context context) {
+        LinkedHashMap<Long, Pending> pending = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(getFile(context))))) {
+            while (true) {
+                byte type = in.readByte();
+                long id = in.readLong();
+                if (type == RECORD_BEGIN) {
+                    Pending record = new Pending(id, in.readInt());
+                    record.users = new int[in.readUnsignedByte()];
+                    for (int i = 0; i < record.users.length; i++) {
+                        record.users[i] = in.readInt();
+                    }
+                    int count = in.readUnsignedShort();
+                    for (int i = 0; i < count; i++) {
+                        record.operations.put(in.readUTF(), in.readBoolean());
+                    }
+                    pending.put(id, record);
+                } else if (type == RECORD_COMPLETE) {
+                    pending.remove(id);
+                } else if (type == RECORD_REPLAY) {
+                    Pending record = pending.get(id);
+                    if (record != null) {
+                        record.replays++;
+                    }
+                } else {
+                    Log.w(TAG, "Corrupt journal record " + type);
+                    break;
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No journal yet
+        } catch (EOFException e) {
+            // End of journal, a torn last record is dropped with it
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read journal", e);
+            return null;
+        }
+        return new ArrayList<>(pending.values());
+    }
+
+    private static File getFile(Context context) {
+        // Device protected, transactions also run before the user unlocks
+        return new File(context.createDeviceProtectedStorageContext().getFilesDir(),
+                JOURNAL_FILE);
+    }
+
+    private static final class Pending {
+        final long id;
+        final int nightMode;
+        int[] users;
+        int replays;
+        final LinkedHashMap<String, Boolean> operations = new LinkedHashMap<>();
+
+        Pending(long id, int nightMode) {
+            this.id = id;
+            this.nightMode = nightMode;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.app.UiModeManager;
+import android.content.Context;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.internal.util.du.ThemesUtils;
+
+import com.dirtyunicorns.themes.R;
+
+/**
+ * One entry of the system theme table, the ids are the values of the theme
+ * switch and the schedule. The table is built once per process and is
+ * immutable, every entry already knows which background overlays to enable
+ * and disable, so adding a theme only takes a new row in {@link #ROWS}.
+ */
+public final class ThemePlan {
+
+    /** The themes without their disable lists, which need every row. */
+    private static final ThemePlan[] ROWS = {
+            new ThemePlan("1", UiModeManager.MODE_NIGHT_NO, null,
+                    R.string.theme_type_light),
+            new ThemePlan("2", UiModeManager.MODE_NIGHT_YES, null,
+                    R.string.theme_type_google_dark),
+            new ThemePlan("3", UiModeManager.MODE_NIGHT_YES, ThemesUtils.PITCH_BLACK,
+                    R.string.theme_type_pitch_black),
+            new ThemePlan("4", UiModeManager.MODE_NIGHT_YES, ThemesUtils.SOLARIZED_DARK,
+                    R.string.theme_type_solarized_dark),
+            new ThemePlan("5", UiModeManager.MODE_NIGHT_YES, ThemesUtils.CHOCO_X,
+                    R.string.theme_type_choco_x),
+            new ThemePlan("6", UiModeManager.MODE_NIGHT_YES, ThemesUtils.BAKED_GREEN,
+                    R.string.theme_type_baked_green),
+            new ThemePlan("7", UiModeManager.MODE_NIGHT_YES, ThemesUtils.DARK_GREY,
+                    R.string.theme_type_dark_grey),
+            new ThemePlan("8", UiModeManager.MODE_NIGHT_YES, ThemesUtils.MATERIAL_OCEAN,
+                    R.string.theme_type_material_ocean),
+            new ThemePlan("9", UiModeManager.MODE_NIGHT_YES, ThemesUtils.CORVUS_CLEAR,
+                    R.string.theme_type_corvus_clear),
+    };
+
+    private static final ThemePlan[] PLANS = new ThemePlan[ROWS.length];
+    private static final ArrayMap<String, ThemePlan> BY_ID = new ArrayMap<>(ROWS.length);
+    private static final ArraySet<String> BACKGROUNDS = new ArraySet<>();
+
+    static {
+        for (ThemePlan row : ROWS) {
+            for (String overlay : row.mEnable) {
+                BACKGROUNDS.add(overlay);
+            }
+        }
+        for (int i = 0; i < ROWS.length; i++) {
+            PLANS[i] = new ThemePlan(ROWS[i], BACKGROUNDS);
+            BY_ID.put(PLANS[i].mId, PLANS[i]);
+        }
+    }
+
+    private final String mId;
+    private final int mNightMode;
+    private final String[] mEnable;
+    private final int mLabel;
+    private final String[] mDisable;
+
+    private ThemePlan(String id, int nightMode, String[] enable, int label) {
+        mId = id;
+        mNightMode = nightMode;
+        // Copied, the framework arrays are shared and mutable
+        mEnable = enable != null ? enable.clone() : new String[0];
+        mLabel = label;
+        mDisable = new String[0];
+    }
+
+    /**
+     * Completes a row with every background overlay it doesn't enable.
+     */
+    private ThemePlan(ThemePlan row, ArraySet<String> backgrounds) {
+        mId = row.mId;
+        mNightMode = row.mNightMode;
+        mEnable = row.mEnable;
+        mLabel = row.mLabel;
+        ArraySet<String> disable = new ArraySet<>(backgrounds);
+        for (String overlay : mEnable) {
+            disable.remove(overlay);
+        }
+        mDisable = disable.toArray(new String[disable.size()]);
+    }
+
+    /**
+     * Returns the plan of a theme id, or null for an unknown id.
+     */
+    public static ThemePlan get(String id) {
+        return id != null ? BY_ID.get(id) : null;
+    }
+
+    /**
+     * Returns the plan matching the current overlays and night mode. An
+     * enabled background wins over night mode, searched from the last row.
+     */
+    public static ThemePlan match(OverlayState state, int nightMode) {
+        for (int i = PLANS.length - 1; i >= 0; i--) {
+            for (String overlay : PLANS[i].mEnable) {
+                if (state.isEnabled(overlay)) {
+                    return PLANS[i];
+                }
+            }
+        }
+        return get(nightMode == UiModeManager.MODE_NIGHT_YES ? "2" : "1");
+    }
+
+    /**
+     * Returns whether the package is the background overlay of some theme.
+     */
+    static boolean isBackground(String packageName) {
+        return BACKGROUNDS.contains(packageName);
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public int getNightMode() {
+        return mNightMode;
+    }
+
+    public int getLabel() {
+        return mLabel;
+    }
+
+    public String getLabel(Context context) {
+        return context.getString(mLabel);
+    }
+
+    /**
+     * Adds the overlay changes and night mode of this theme to a transaction.
+     */
+    public OverlayTransaction applyTo(OverlayTransaction transaction) {
+        return transaction.disable(mDisable)
+                .enable(mEnable)
+                .setNightMode(mNightMode);
+    }
+}
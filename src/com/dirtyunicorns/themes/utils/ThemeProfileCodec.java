@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.SharedPreferences;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Binary exchange format for theme profiles.
+ *
+ * <pre>
+ * header: int magic, byte version, short n, n x UTF overlay package, int crc
+ * record: short length, length bytes of payload, int crc of the payload
+ * payload: UTF name, byte theme, int accent, byte n, n x short package index
+ * end:    short 0
+ * </pre>
+ *
+ * Overlays are stored as indices into the package table of the header, so
+ * a file stays valid on builds that order their overlays differently.
+ * Records are read and checked one at a time, so the file itself never has
+ * to be in memory. What an import does hold until its single commit is the
+ * header table and the decoded profiles, at most {@link #MAX_PROFILES}.
+ */
+public final class ThemeProfileCodec {
+
+    private static final int MAGIC = 0x44555450; // DUTP
+    private static final int VERSION = 1;
+    private static final int MAX_RECORD = 4096;
+    private static final int MAX_PROFILES = 256;
+
+    private ThemeProfileCodec() {
+    }
+
+    public static final class ImportResult {
+        public final int count;
+        public final int skipped;
+        public final String firstName;
+        public final ThemeConfig first;
+
+        ImportResult(int count, int skipped, String firstName, ThemeConfig first) {
+            this.count = count;
+            this.skipped = skipped;
+            this.firstName = firstName;
+            this.first = first;
+        }
+    }
+
+    /**
+     * Writes every saved profile and returns how many were written.
+     */
+    public static int write(OutputStream os, ThemeProfiles profiles) throws IOException {
+        List<String> names = profiles.getNames();
+        if (names.size() > MAX_PROFILES) {
+            throw new IOException("Too many profiles " + names.size());
+        }
+
+        // Only the packages the profiles use go into the table
+        ArrayList<String> table = new ArrayList<>();
+        ArrayMap<String, Integer> indices = new ArrayMap<>();
+        for (String name : names) {
+            ThemeConfig config = profiles.get(name);
+            if (config == null) {
+                continue;
+            }
+            for (OverlayCategory category : OverlayCategory.ALL) {
+                String overlay = getOverlay(config, category);
+                if (overlay != null && !indices.containsKey(overlay)) {
+                    indices.put(overlay, table.size());
+                    table.add(overlay);
+                }
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(buffer);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.writeShort(table.size());
+        for (String overlay : table) {
+            header.writeUTF(overlay);
+        }
+        writeChecked(out, buffer.toByteArray(), false);
+
+        int count = 0;
+        for (String name : names) {
+            ThemeConfig config = profiles.get(name);
+            if (config == null) {
+                continue;
+            }
+            buffer.reset();
+            DataOutputStream record = new DataOutputStream(buffer);
+            record.writeUTF(name);
+            String theme = config.getTheme();
+            record.writeByte(theme != null ? Integer.parseInt(theme) : 0);
+            record.writeInt(config.getAccent());
+            ArrayList<Integer> selected = new ArrayList<>();
+            for (OverlayCategory category : OverlayCategory.ALL) {
+                String overlay = getOverlay(config, category);
+                if (overlay != null) {
+                    selected.add(indices.get(overlay));
+                }
+            }
+            record.writeByte(selected.size());
+            for (int index : selected) {
+                record.writeShort(index);
+            }
+            writeChecked(out, buffer.toByteArray(), true);
+            count++;
+        }
+        out.writeShort(0);
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Reads a file into the saved profiles. Nothing is saved unless every
+     * record passes its checksum, so the accepted profiles are kept in one
+     * editor and committed at the end. Like a rename, an import never overwrites
+     * a saved profile, a record whose name is taken is skipped and counted.
+     */
+    public static ImportResult read(InputStream is, ThemeProfiles profiles) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+        DataInputStream header = new DataInputStream(checked);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a theme profile file");
+        }
+        int version = header.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported profile version " + version);
+        }
+        String[] table = new String[header.readUnsignedShort()];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = header.readUTF();
+        }
+        if ((int) checked.getChecksum().getValue() != in.readInt()) {
+            throw new IOException("Corrupt profile header");
+        }
+
+        ArrayMap<String, OverlayCategory> categories = new ArrayMap<>();
+        for (OverlayCategory category : OverlayCategory.ALL) {
+            for (String overlay : category.getOverlays()) {
+                categories.put(overlay, category);
+            }
+        }
+
+        SharedPreferences.Editor editor = profiles.edit();
+        ArraySet<String> names = new ArraySet<>();
+        CRC32 crc = new CRC32();
+        int count = 0;
+        int skipped = 0;
+        String firstName = null;
+        ThemeConfig first = null;
+        byte[] payload = new byte[MAX_RECORD];
+        int length;
+        while ((length = in.readUnsignedShort()) != 0) {
+            if (length > MAX_RECORD) {
+                throw new IOException("Profile record too large");
+            }
+            if (count + skipped >= MAX_PROFILES) {
+                throw new IOException("Too many profiles");
+            }
+            in.readFully(payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != in.readInt()) {
+                throw new IOException("Corrupt profile record " + (count + skipped));
+            }
+
+            DataInputStream record = new DataInputStream(
+                    new ByteArrayInputStream(payload, 0, length));
+            String name = record.readUTF();
+            int theme = record.readUnsignedByte();
+            ThemeConfig config = new ThemeConfig(0, record.readInt())
+                    .withTheme(theme != 0 ? String.valueOf(theme) : null);
+            int selected = record.readUnsignedByte();
+            for (int i = 0; i < selected; i++) {
+                int index = record.readUnsignedShort();
+                if (index >= table.length) {
+                    throw new IOException("Bad package index in profile " + name);
+                }
+                OverlayCategory category = categories.get(table[index]);
+                if (category != null) {
+                    // Overlays missing on this build fall back to default
+                    config = config.withValue(category, category.valueFromPosition(
+                            indexOf(category.getOverlays(), table[index])));
+                }
+            }
+            if (profiles.contains(name) || !names.add(name)) {
+                skipped++;
+                continue;
+            }
+            ThemeProfiles.put(editor, name, config);
+            if (first == null) {
+                firstName = name;
+                first = config;
+            }
+            count++;
+        }
+        editor.apply();
+        return new ImportResult(count, skipped, firstName, first);
+    }
+
+    private static String getOverlay(ThemeConfig config, OverlayCategory category) {
+        int position = config.getPosition(category);
+        String[] overlays = category.getOverlays();
+        return position >= 0 && position < overlays.length ? overlays[position] : null;
+    }
+
+    private static int indexOf(String[] overlays, String overlay) {
+        for (int i = 0; i < overlays.length; i++) {
+            if (overlays[i].equals(overlay)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeChecked(DataOutputStream out, byte[] bytes, boolean prefixed)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if (prefixed) {
+            if (bytes.length > MAX_RECORD) {
+                throw new IOException("Profile record too large");
+            }
+            out.writeShort(bytes.length);
+        }
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Named theme configurations. Every profile is stored as its packed
+ * {@link ThemeConfig}, so applying one is a single diff against the current
+ * configuration.
+ */
+public class ThemeProfiles {
+
+    private static final String TAG = "ThemeProfiles";
+
+    private static final String PREFS_NAME = "theme_profiles";
+    private static final String KEY_PREFIX = "profile:";
+
+    private final SharedPreferences mPrefs;
+
+    public ThemeProfiles(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public List<String> getNames() {
+        ArrayList<String> names = new ArrayList<>();
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.startsWith(KEY_PREFIX)) {
+                names.add(key.substring(KEY_PREFIX.length()));
+            }
+        }
+        Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+        return names;
+    }
+
+    public boolean contains(String name) {
+        return mPrefs.contains(KEY_PREFIX + name);
+    }
+
+    /**
+     * Returns the configuration of a profile, or null if there is no valid
+     * profile with that name.
+     */
+    public ThemeConfig get(String name) {
+        return decode(mPrefs.getString(KEY_PREFIX + name, null));
+    }
+
+    public void save(String name, ThemeConfig config) {
+        put(mPrefs.edit(), name, config).apply();
+    }
+
+    SharedPreferences.Editor edit() {
+        return mPrefs.edit();
+    }
+
+    static SharedPreferences.Editor put(SharedPreferences.Editor editor, String name,
+            ThemeConfig config) {
+        return editor.putString(KEY_PREFIX + name, encode(config));
+    }
+
+    /**
+     * Renames a profile, refusing to overwrite another one.
+     */
+    public boolean rename(String name, String newName) {
+        String value = mPrefs.getString(KEY_PREFIX + name, null);
+        if (value == null || contains(newName)) {
+            return false;
+        }
+        mPrefs.edit()
+                .remove(KEY_PREFIX + name)
+                .putString(KEY_PREFIX + newName, value)
+                .apply();
+        return true;
+    }
+
+    public void delete(String name) {
+        mPrefs.edit().remove(KEY_PREFIX + name).apply();
+    }
+
+    static String encode(ThemeConfig config) {
+        return Long.toHexString(config.getBits()) + "/" + Integer.toHexString(config.getAccent());
+    }
+
+    static ThemeConfig decode(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return null;
+        }
+        int separator = value.indexOf('/');
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            return new ThemeConfig(Long.parseUnsignedLong(value.substring(0, separator), 16),
+                    Integer.parseUnsignedInt(value.substring(separator + 1), 16));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid profile " + value);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.Context;
+import android.content.om.IOverlayManager;
+import android.os.ServiceManager;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Puts every category, the background theme, the QS tile style and the
+ * accent back to their defaults. The difference to the defaults is applied
+ * as one overlay transaction and checked against a fresh overlay query of
+ * every target user.
+ */
+public final class ThemeReset {
+
+    private static final String TAG = "ThemeReset";
+    private static final String SCOPE = "theme_reset";
+
+    public interface Callback {
+        /**
+         * Called on the main thread with the target users whose state read
+         * back afterwards still differs from the defaults, empty if none.
+         */
+        void onReset(int[] unconfirmedUsers);
+    }
+
+    private ThemeReset() {
+    }
+
+    public static void reset(Context context, final IOverlayManager overlayManager,
+            final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        ThemeConfig.supersede(-1L);
+        final long generation = ThemeArbiter.stamp(SCOPE);
+        final int[][] unconfirmed = { new int[0] };
+        OverlayApplyQueue.get().enqueue(SCOPE, new Runnable() {
+            @Override
+            public void run() {
+                ThemeConfig current = ThemeConfig.capture(appContext);
+                ThemeConfig defaults = ThemeConfig.DEFAULT;
+                if (current.getAccent() != defaults.getAccent()) {
+                    Settings.System.putIntForUser(appContext.getContentResolver(),
+                            Settings.System.ACCENT_COLOR, defaults.getAccent(),
+                            UserHandle.USER_CURRENT);
+                    ThemeBackup.dataChanged(appContext);
+                }
+                if (Settings.System.getInt(appContext.getContentResolver(),
+                        Settings.System.QS_TILE_STYLE, 0) != 0) {
+                    Settings.System.putInt(appContext.getContentResolver(),
+                            Settings.System.QS_TILE_STYLE, 0);
+                }
+                // Other users may not match the current one, so touch everything
+                int[] users = ThemeUsers.getTargets(appContext);
+                defaults.diffInto(users.length > 1 ? null : current,
+                        new OverlayTransaction(overlayManager)
+                                .setGeneration(SCOPE, generation)
+                                .setUsers(users))
+                        .commit(appContext);
+
+                // Read back from the overlay manager, not the cached snapshot
+                IOverlayManager service = IOverlayManager.Stub.asInterface(
+                        ServiceManager.getService(Context.OVERLAY_SERVICE));
+                ArrayList<Integer> failed = new ArrayList<>();
+                for (int i = 0; i < users.length; i++) {
+                    ThemeConfig result = ThemeConfig.capture(appContext,
+                            OverlayState.query(service, users[i]));
+                    // The accent is a setting of the current user, checked once
+                    boolean reset = i == 0 ? defaults.equals(result)
+                            : defaults.getBits() == result.getBits();
+                    if (!reset) {
+                        Log.w(TAG, "Reset left " + result + " for user " + users[i]
+                                + ", expected " + defaults);
+                        failed.add(users[i]);
+                    }
+                }
+                unconfirmed[0] = new int[failed.size()];
+                for (int i = 0; i < unconfirmed[0].length; i++) {
+                    unconfirmed[0][i] = failed.get(i);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (callback != null) {
+                    callback.onReset(unconfirmed[0]);
+                }
+            }
+        });
+    }
+}
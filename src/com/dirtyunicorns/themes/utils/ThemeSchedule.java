@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_END_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_START_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_THEME_VALUE;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_REPEAT_DAILY;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_THEME_VALUE;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Sorted list of transitions, each a minute of the day, the theme that
+ * becomes active then and the days of the week it applies on. Every
+ * weekday gets its own sorted table, so the active theme and the next
+ * transition are a binary search in one day plus at most a week of
+ * single lookups. A schedule with an end time stops after it, otherwise
+ * it repeats.
+ */
+public final class ThemeSchedule {
+
+    private static final String TAG = "ThemeSchedule";
+
+    static final String PREFS_NAME = "theme_schedule";
+    private static final String KEY_TRANSITIONS = "transitions";
+    private static final String KEY_UNTIL = "until";
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int DAYS_PER_WEEK = 7;
+
+    /** Days masks, bit 0 is {@link Calendar#SUNDAY}. */
+    public static final int EVERY_DAY = (1 << DAYS_PER_WEEK) - 1;
+    public static final int WEEKEND = dayBit(Calendar.SATURDAY) | dayBit(Calendar.SUNDAY);
+    public static final int WEEKDAYS = EVERY_DAY & ~WEEKEND;
+
+    public static final ThemeSchedule EMPTY =
+            new ThemeSchedule(new int[0], new String[0], new int[0], 0);
+
+    private final int[] mMinutes;
+    private final String[] mThemes;
+    private final int[] mDays;
+    private final long mUntil;
+
+    /** Per weekday, the indices of its transitions in minute order. */
+    private final int[][] mByDay = new int[DAYS_PER_WEEK][];
+
+    private ThemeSchedule(int[] minutes, String[] themes, int[] days, long until) {
+        mMinutes = minutes;
+        mThemes = themes;
+        mDays = days;
+        mUntil = until;
+        for (int day = 0; day < DAYS_PER_WEEK; day++) {
+            int count = 0;
+            for (int mask : days) {
+                if ((mask & (1 << day)) != 0) {
+                    count++;
+                }
+            }
+            int[] indices = new int[count];
+            count = 0;
+            for (int i = 0; i < days.length; i++) {
+                if ((days[i] & (1 << day)) != 0) {
+                    indices[count++] = i;
+                }
+            }
+            mByDay[day] = indices;
+        }
+    }
+
+    /** Day bit of {@link Calendar#SUNDAY} through {@link Calendar#SATURDAY}. */
+    public static int dayBit(int dayOfWeek) {
+        return 1 << (dayOfWeek - Calendar.SUNDAY);
+    }
+
+    /**
+     * The schedule lives in device protected storage, so it can be armed
+     * and run at LOCKED_BOOT_COMPLETED, before the user unlocks.
+     */
+    public static SharedPreferences getPreferences(Context context) {
+        return Utils.getDeviceProtectedPreferences(context, PREFS_NAME);
+    }
+
+    public static ThemeSchedule load(Context context) {
+        SharedPreferences prefs = getPreferences(context);
+        if (!prefs.contains(KEY_TRANSITIONS)) {
+            if (!Utils.isUserUnlocked(context)) {
+                // The legacy preferences are still encrypted, migrate later
+                return EMPTY;
+            }
+            ThemeSchedule legacy = fromLegacy(context);
+            legacy.save(context);
+            return legacy;
+        }
+        return decode(prefs.getString(KEY_TRANSITIONS, null), prefs.getLong(KEY_UNTIL, 0));
+    }
+
+    public void save(Context context) {
+        getPreferences(context).edit()
+                .putString(KEY_TRANSITIONS, encode())
+                .putLong(KEY_UNTIL, mUntil)
+                .commit();
+    }
+
+    /**
+     * Builds the schedule from the start and end theme preferences used
+     * before there was a schedule engine.
+     */
+    private static ThemeSchedule fromLegacy(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        ThemeSchedule schedule = EMPTY;
+        String start = prefs.getString(PREF_THEME_SCHEDULED_START_THEME_VALUE, null);
+        long startTime = prefs.getLong(PREF_ALARM_START_TIME, 0);
+        if (start != null && startTime != 0) {
+            schedule = schedule.withTransition(minuteOf(startTime), start);
+        }
+        String end = prefs.getString(PREF_THEME_SCHEDULED_END_THEME_VALUE, null);
+        long endTime = prefs.getLong(PREF_ALARM_END_TIME, 0);
+        if (end != null && endTime != 0) {
+            schedule = schedule.withTransition(minuteOf(endTime), end);
+        }
+        if (!schedule.isEmpty() && !prefs.getBoolean(PREF_THEME_SCHEDULED_REPEAT_DAILY, false)) {
+            schedule = schedule.withUntil(Math.max(startTime, endTime));
+        }
+        return schedule;
+    }
+
+    /**
+     * Parses "minute:theme:days" entries separated by commas, the days mask
+     * is optional and defaults to every day. Invalid entries are dropped.
+     */
+    public static ThemeSchedule decode(String transitions, long until) {
+        ThemeSchedule schedule = EMPTY.withUntil(until);
+        if (TextUtils.isEmpty(transitions)) {
+            return schedule;
+        }
+        for (String transition : transitions.split(",")) {
+            String[] parts = transition.split(":");
+            try {
+                int minute = Integer.parseInt(parts[0]);
+                int days = parts.length > 2 ? Integer.parseInt(parts[2]) : EVERY_DAY;
+                if ((parts.length == 2 || parts.length == 3)
+                        && minute >= 0 && minute < MINUTES_PER_DAY
+                        && (days & EVERY_DAY) != 0 && ThemePlan.get(parts[1]) != null) {
+                    schedule = schedule.withTransition(minute, parts[1], days & EVERY_DAY);
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // Logged below
+            }
+            Log.w(TAG, "Dropping invalid transition " + transition);
+        }
+        return schedule;
+    }
+
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mMinutes.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(mMinutes[i]).append(':').append(mThemes[i]);
+            if (mDays[i] != EVERY_DAY) {
+                builder.append(':').append(mDays[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    public boolean isEmpty() {
+        return mMinutes.length == 0;
+    }
+
+    public int size() {
+        return mMinutes.length;
+    }
+
+    public int getMinute(int index) {
+        return mMinutes[index];
+    }
+
+    public String getTheme(int index) {
+        return mThemes[index];
+    }
+
+    public int getDays(int index) {
+        return mDays[index];
+    }
+
+    /**
+     * Returns the time after which the schedule stops, or 0 if it repeats.
+     */
+    public long getUntil() {
+        return mUntil;
+    }
+
+    public ThemeSchedule withTransition(int minute, String theme) {
+        return withTransition(minute, theme, EVERY_DAY);
+    }
+
+    /**
+     * Adds a transition on the given days. Transitions at the same minute
+     * lose those days, and are dropped if no day is left.
+     */
+    public ThemeSchedule withTransition(int minute, String theme, int days) {
+        int size = mMinutes.length + 1;
+        int[] minutes = new int[size];
+        String[] themes = new String[size];
+        int[] masks = new int[size];
+        int count = 0;
+        boolean inserted = false;
+        for (int i = 0; i < mMinutes.length; i++) {
+            if (!inserted && mMinutes[i] > minute) {
+                minutes[count] = minute;
+                themes[count] = theme;
+                masks[count++] = days;
+                inserted = true;
+            }
+            int mask = mMinutes[i] == minute ? mDays[i] & ~days : mDays[i];
+            if (mask != 0) {
+                minutes[count] = mMinutes[i];
+                themes[count] = mThemes[i];
+                masks[count++] = mask;
+            }
+        }
+        if (!inserted) {
+            minutes[count] = minute;
+            themes[count] = theme;
+            masks[count++] = days;
+        }
+        return new ThemeSchedule(Arrays.copyOf(minutes, count), Arrays.copyOf(themes, count),
+                Arrays.copyOf(masks, count), mUntil);
+    }
+
+    /**
+     * Removes every transition to the given theme.
+     */
+    public ThemeSchedule withoutTheme(String theme) {
+        ThemeSchedule schedule = EMPTY.withUntil(mUntil);
+        for (int i = 0; i < mMinutes.length; i++) {
+            if (!mThemes[i].equals(theme)) {
+                schedule = schedule.withTransition(mMinutes[i], mThemes[i], mDays[i]);
+            }
+        }
+        return schedule;
+    }
+
+    /**
+     * Removes the transition at the given minute, if it goes to the given
+     * theme. Transitions to the same theme at other minutes stay.
+     */
+    public ThemeSchedule withoutTransition(int minute, String theme) {
+        ThemeSchedule schedule = EMPTY.withUntil(mUntil);
+        for (int i = 0; i < mMinutes.length; i++) {
+            if (mMinutes[i] != minute || !mThemes[i].equals(theme)) {
+                schedule = schedule.withTransition(mMinutes[i], mThemes[i], mDays[i]);
+            }
+        }
+        return schedule;
+    }
+
+    /**
+     * Minute of the day of the given time, in the current time zone.
+     */
+    public static int getMinuteOfDay(long time) {
+        return minuteOf(time);
+    }
+
+    /**
+     * Moves every transition to the given days.
+     */
+    public ThemeSchedule withDays(int days) {
+        ThemeSchedule schedule = EMPTY.withUntil(mUntil);
+        for (int i = 0; i < mMinutes.length; i++) {
+            schedule = schedule.withTransition(mMinutes[i], mThemes[i], days);
+        }
+        return schedule;
+    }
+
+    public ThemeSchedule withUntil(long until) {
+        return new ThemeSchedule(mMinutes, mThemes, mDays, until);
+    }
+
+    /**
+     * Returns the theme that should be active at the given time, which is
+     * the one of the latest transition at or before it, looking back up to
+     * a week. Null if empty.
+     */
+    public String getActiveTheme(long time) {
+        if (isEmpty()) {
+            return null;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int day = calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY;
+        int[] today = mByDay[day];
+        int position = upperBound(today, minuteOf(calendar)) - 1;
+        if (position >= 0) {
+            return mThemes[today[position]];
+        }
+        for (int offset = 1; offset <= DAYS_PER_WEEK; offset++) {
+            int[] earlier = mByDay[(day - offset + DAYS_PER_WEEK) % DAYS_PER_WEEK];
+            if (earlier.length > 0) {
+                return mThemes[earlier[earlier.length - 1]];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns when the next transition after the given time happens, or -1
+     * if there is none before the schedule stops. Transitions are wall
+     * clock times, the result is only valid for the current time zone.
+     */
+    public long getNextTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int index = next(calendar);
+        if (index < 0) {
+            return -1;
+        }
+        calendar.set(Calendar.HOUR_OF_DAY, mMinutes[index] / 60);
+        calendar.set(Calendar.MINUTE, mMinutes[index] % 60);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long next = calendar.getTimeInMillis();
+        // A wall time repeated when daylight saving ends resolves to its
+        // second pass, the first one is due if it is still ahead
+        long first = next - calendar.getTimeZone().getDSTSavings();
+        if (first > time && first < next && minuteOf(first) == minuteOf(calendar)) {
+            next = first;
+        }
+        return mUntil != 0 && next > mUntil ? -1 : next;
+    }
+
+    /**
+     * Returns the theme of the next transition after the given time.
+     */
+    public String getNextTheme(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int index = next(calendar);
+        return index >= 0 ? mThemes[index] : null;
+    }
+
+    /**
+     * Finds the next transition after the calendar time, moving the
+     * calendar to its day. Returns its index, or -1 if there is none.
+     */
+    private int next(Calendar calendar) {
+        int day = calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY;
+        int[] today = mByDay[day];
+        int position = upperBound(today, minuteOf(calendar));
+        if (position < today.length) {
+            return today[position];
+        }
+        // Same weekday a week later is the last candidate
+        for (int offset = 1; offset <= DAYS_PER_WEEK; offset++) {
+            int[] later = mByDay[(day + offset) % DAYS_PER_WEEK];
+            if (later.length > 0) {
+                calendar.add(Calendar.DAY_OF_MONTH, offset);
+                return later[0];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Position of the first of the given transitions after the minute.
+     */
+    private int upperBound(int[] indices, int minute) {
+        int low = 0;
+        int high = indices.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mMinutes[indices[mid]] <= minute) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int minuteOf(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return minuteOf(calendar);
+    }
+
+    private static int minuteOf(Calendar calendar) {
+        return calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+    }
+
+    @Override
+    public String toString() {
+        return "ThemeSchedule{" + encode() + (mUntil != 0 ? ", until " + mUntil : "") + "}";
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_END_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_START_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULE;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_THEME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_THEME_VALUE;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_REPEAT_DAILY;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_THEME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_THEME_VALUE;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_TOAST;
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_SWITCH;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.UiModeManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.om.IOverlayManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ServiceManager;
+import android.widget.Toast;
+
+import androidx.preference.PreferenceManager;
+
+import com.dirtyunicorns.themes.R;
+import com.dirtyunicorns.themes.receivers.ThemesScheduleReceiver;
+
+/**
+ * Runs a {@link ThemeSchedule}. Only one alarm is ever armed, for the next
+ * transition, and it is armed again each time it fires, so the number of
+ * transitions never changes the number of registered alarms.
+ */
+public final class ThemeScheduler {
+
+    public static final String ACTION_TRANSITION =
+            "com.dirtyunicorns.themes.action.SCHEDULE_TRANSITION";
+    private static final String EXTRA_SCHEDULED_TIME = "scheduled_time";
+
+    /** Theme the schedule last brought in, kept with the schedule. */
+    private static final String KEY_ACTIVE = "active";
+
+    private ThemeScheduler() {
+    }
+
+    /**
+     * Stores a schedule and arms its next transition.
+     */
+    public static void save(Context context, ThemeSchedule schedule) {
+        schedule.save(context);
+        ThemeBackup.dataChanged(context);
+        arm(context, schedule);
+    }
+
+    public static void clear(Context context) {
+        save(context, ThemeSchedule.EMPTY);
+        ThemeSchedule.getPreferences(context).edit().remove(KEY_ACTIVE).apply();
+    }
+
+    public static void arm(Context context) {
+        arm(context, ThemeSchedule.load(context));
+    }
+
+    private static void arm(Context context, ThemeSchedule schedule) {
+        long next = schedule.getNextTime(System.currentTimeMillis());
+        AlarmManager alarmManager = context.getSystemService(AlarmManager.class);
+        if (alarmManager == null) {
+            return;
+        }
+        if (next < 0) {
+            alarmManager.cancel(getPendingIntent(context, 0));
+        } else {
+            // Exact and allowed in idle, a repeating alarm would be batched
+            // and land minutes late. Replaces whatever was armed before.
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next,
+                    getPendingIntent(context, next));
+        }
+    }
+
+    /**
+     * Applies the theme that is active now, unless the device already shows
+     * it, and arms the next transition. A schedule that has run its course
+     * is cleared. onApplied runs on the main thread once done.
+     */
+    public static void onTransition(Context context, Intent intent, Runnable onApplied) {
+        long now = System.currentTimeMillis();
+        long scheduled = intent.getLongExtra(EXTRA_SCHEDULED_TIME, 0);
+        if (scheduled != 0) {
+            ScheduleTelemetry.record(context, scheduled, now);
+        }
+        catchUp(context, now, true, onApplied);
+    }
+
+    /**
+     * Evaluates the schedule at the current time, applies its theme if the
+     * device shows another one and arms the next transition. Run after the
+     * device was off or asleep across a transition, or the clock moved.
+     */
+    public static void catchUp(Context context, Runnable onApplied) {
+        catchUp(context, System.currentTimeMillis(), false, onApplied);
+    }
+
+    /**
+     * Re-arms after the wall clock or time zone changed, which moves the
+     * next transition. Overlays are only looked at if the change moved the
+     * schedule into another theme, otherwise this is a preference read and
+     * one alarm.
+     */
+    public static void onClockChanged(Context context, Runnable onApplied) {
+        ThemeSchedule schedule = ThemeSchedule.load(context);
+        long now = System.currentTimeMillis();
+        String active = schedule.getActiveTheme(now);
+        if (active == null || schedule.getNextTime(now) < 0 || !active.equals(
+                ThemeSchedule.getPreferences(context).getString(KEY_ACTIVE, null))) {
+            catchUp(context, now, false, onApplied);
+            return;
+        }
+        arm(context, schedule);
+        if (onApplied != null) {
+            new Handler(Looper.getMainLooper()).post(onApplied);
+        }
+    }
+
+    private static void catchUp(Context context, long now, final boolean toast,
+            Runnable onApplied) {
+        final Context appContext = context.getApplicationContext();
+        ThemeSchedule schedule = ThemeSchedule.load(appContext);
+        // A schedule that ended while the device was off still gets the
+        // theme of its last transition
+        long until = schedule.getUntil();
+        final ThemePlan plan = ThemePlan.get(schedule.getActiveTheme(
+                until != 0 ? Math.min(now, until) : now));
+        if (schedule.getNextTime(now) < 0 && !schedule.isEmpty()) {
+            if (Utils.isUserUnlocked(appContext)) {
+                clearPreferences(appContext);
+            }
+            clear(appContext);
+        } else {
+            arm(appContext, schedule);
+        }
+        if (plan == null) {
+            if (onApplied != null) {
+                new Handler(Looper.getMainLooper()).post(onApplied);
+            }
+            return;
+        }
+
+        ThemeSchedule.getPreferences(appContext).edit()
+                .putString(KEY_ACTIVE, plan.getId())
+                .apply();
+
+        // Compared on the apply queue, after a journal recovery or any
+        // other writer queued before it. Not coalesced, so every caller
+        // gets its callback.
+        final long generation = ThemeArbiter.stamp(PREF_THEME_SWITCH);
+        final Runnable done = onApplied;
+        OverlayApplyQueue.get().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (plan != getCurrentPlan(appContext)) {
+                    Utils.setTheme(appContext, plan, IOverlayManager.Stub.asInterface(
+                            ServiceManager.getService(Context.OVERLAY_SERVICE)), generation);
+                    if (toast) {
+                        showToast(appContext, plan);
+                    }
+                }
+                if (done != null) {
+                    new Handler(Looper.getMainLooper()).post(done);
+                }
+            }
+        }, 0);
+    }
+
+    private static void showToast(final Context context, final ThemePlan plan) {
+        // No toast over the lock screen before the first unlock
+        if (!Utils.isUserUnlocked(context) || !PreferenceManager
+                .getDefaultSharedPreferences(context).getBoolean(PREF_THEME_SCHEDULED_TOAST, true)) {
+            return;
+        }
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(context, plan.getLabel(context) + " "
+                        + context.getString(R.string.theme_schedule_applied),
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private static ThemePlan getCurrentPlan(Context context) {
+        UiModeManager uiModeManager = context.getSystemService(UiModeManager.class);
+        return ThemePlan.match(OverlayState.get(context), uiModeManager != null
+                ? uiModeManager.getNightMode() : UiModeManager.MODE_NIGHT_NO);
+    }
+
+    /**
+     * Resets what the schedule screen shows once a schedule ended.
+     */
+    private static void clearPreferences(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(PREF_THEME_SCHEDULE, "1")
+                .remove(PREF_THEME_SCHEDULED_START_THEME_VALUE)
+                .remove(PREF_THEME_SCHEDULED_START_THEME)
+                .remove(PREF_THEME_SCHEDULED_START_TIME)
+                .remove(PREF_THEME_SCHEDULED_END_THEME_VALUE)
+                .remove(PREF_THEME_SCHEDULED_END_THEME)
+                .remove(PREF_THEME_SCHEDULED_END_TIME)
+                .remove(PREF_THEME_SCHEDULED_REPEAT_DAILY)
+                .remove(PREF_ALARM_START_TIME)
+                .remove(PREF_ALARM_END_TIME)
+                .apply();
+    }
+
+    private static PendingIntent getPendingIntent(Context context, long scheduled) {
+        Intent intent = new Intent(context, ThemesScheduleReceiver.class)
+                .setAction(ACTION_TRANSITION)
+                .putExtra(EXTRA_SCHEDULED_TIME, scheduled);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
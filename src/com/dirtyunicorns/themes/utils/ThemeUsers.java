@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_USERS;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.UserInfo;
+import android.os.UserManager;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Resolves which users a theme change is applied for: always the current
+ * user, plus the other users and profiles chosen in the theme settings.
+ */
+public final class ThemeUsers {
+
+    private ThemeUsers() {
+    }
+
+    /**
+     * Returns the target user ids, the current user first.
+     */
+    public static int[] getTargets(Context context) {
+        int currentUser = ActivityManager.getCurrentUser();
+        if (!Utils.isUserUnlocked(context)) {
+            // The choice is in credential encrypted storage
+            return new int[] { currentUser };
+        }
+        Set<String> chosen = PreferenceManager.getDefaultSharedPreferences(context)
+                .getStringSet(PREF_THEME_USERS, null);
+        if (chosen == null || chosen.isEmpty()) {
+            return new int[] { currentUser };
+        }
+        ArrayList<Integer> targets = new ArrayList<>();
+        targets.add(currentUser);
+        for (UserInfo user : getOtherUsers(context)) {
+            if (chosen.contains(String.valueOf(user.id))) {
+                targets.add(user.id);
+            }
+        }
+        int[] userIds = new int[targets.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = targets.get(i);
+        }
+        return userIds;
+    }
+
+    /**
+     * Returns every user and profile on the device except the current user.
+     */
+    public static List<UserInfo> getOtherUsers(Context context) {
+        int currentUser = ActivityManager.getCurrentUser();
+        ArrayList<UserInfo> others = new ArrayList<>();
+        UserManager userManager = context.getSystemService(UserManager.class);
+        if (userManager == null) {
+            return others;
+        }
+        for (UserInfo user : userManager.getUsers(true /* excludeDying */)) {
+            if (user.id != currentUser) {
+                others.add(user);
+            }
+        }
+        return others;
+    }
+}
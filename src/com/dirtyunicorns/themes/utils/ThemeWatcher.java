@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.Themes.DEFAULT_ACCENT_COLOR;
+
+import android.app.ActivityManager;
+import android.app.UiModeManager;
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.ArrayMap;
+
+import java.util.Map;
+
+/**
+ * Tells a screen which of its preferences went stale because another
+ * component changed an overlay, night mode, the QS tile style or the
+ * accent. Overlay
+ * changes are diffed against the last seen snapshot and mapped back to
+ * their category through a reverse index, so only the affected preference
+ * has to be updated. While stopped nothing is watched, the next start
+ * reports what changed in between and nothing if nothing did.
+ */
+public final class ThemeWatcher {
+
+    private static final String QUEUE_KEY = "theme_watcher";
+
+    /** Overlay package to the category and position it selects. */
+    private static final ArrayMap<String, Slot> INDEX = new ArrayMap<>();
+
+    static {
+        for (OverlayCategory category : OverlayCategory.ALL) {
+            String[] overlays = category.getOverlays();
+            for (int i = 0; i < overlays.length; i++) {
+                INDEX.put(overlays[i], new Slot(category, i));
+            }
+        }
+    }
+
+    public interface Listener {
+        void onCategoryChanged(OverlayCategory category, int position);
+
+        void onThemeChanged(ThemePlan plan);
+
+        void onAccentChanged(int accent);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private boolean mStarted;
+    private boolean mSettingsKnown;
+    private int mAccent;
+    private int mQsTileStyle;
+
+    // Only touched on the apply queue thread
+    private Map<String, Boolean> mLastOverlays;
+    private int mLastNightMode;
+
+    public ThemeWatcher(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        IntentFilter filter = new IntentFilter(Intent.ACTION_OVERLAY_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mOverlayReceiver, UserHandle.ALL, filter, null, mHandler);
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.registerContentObserver(Settings.System.getUriFor(Settings.System.ACCENT_COLOR),
+                false, mSettingsObserver, UserHandle.USER_ALL);
+        resolver.registerContentObserver(Settings.System.getUriFor(Settings.System.QS_TILE_STYLE),
+                false, mSettingsObserver, UserHandle.USER_ALL);
+        // Light and dark differ only in night mode, no overlay changes
+        resolver.registerContentObserver(Settings.Secure.getUriFor(Settings.Secure.UI_NIGHT_MODE),
+                false, mNightModeObserver, UserHandle.USER_ALL);
+
+        // Catch up on what happened while stopped
+        checkSettings();
+        checkOverlays();
+    }
+
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mContext.unregisterReceiver(mOverlayReceiver);
+        mContext.getContentResolver().unregisterContentObserver(mSettingsObserver);
+        mContext.getContentResolver().unregisterContentObserver(mNightModeObserver);
+    }
+
+    private void checkSettings() {
+        ContentResolver resolver = mContext.getContentResolver();
+        int accent = Settings.System.getIntForUser(resolver, Settings.System.ACCENT_COLOR,
+                DEFAULT_ACCENT_COLOR, UserHandle.USER_CURRENT);
+        int qsTileStyle = Settings.System.getInt(resolver, Settings.System.QS_TILE_STYLE, 0);
+        boolean known = mSettingsKnown;
+        boolean accentChanged = accent != mAccent;
+        boolean qsTileStyleChanged = qsTileStyle != mQsTileStyle;
+        mAccent = accent;
+        mQsTileStyle = qsTileStyle;
+        mSettingsKnown = true;
+        if (!known) {
+            return;
+        }
+        if (accentChanged) {
+            mListener.onAccentChanged(accent);
+        }
+        if (qsTileStyleChanged) {
+            mListener.onCategoryChanged(OverlayCategory.QS_TILE_STYLE,
+                    OverlayCategory.QS_TILE_STYLE.positionFromValue(String.valueOf(qsTileStyle)));
+        }
+    }
+
+    /**
+     * Diffs the overlay state off the main thread, a burst of broadcasts is
+     * coalesced into one pass.
+     */
+    private void checkOverlays() {
+        final ArrayMap<OverlayCategory, Integer> categories = new ArrayMap<>();
+        final ThemePlan[] theme = new ThemePlan[1];
+        OverlayApplyQueue.get().enqueue(QUEUE_KEY, new Runnable() {
+            @Override
+            public void run() {
+                OverlayState state = OverlayState.get(mContext);
+                Map<String, Boolean> overlays = state.asMap();
+                if (overlays == null) {
+                    return;
+                }
+                UiModeManager uiModeManager = mContext.getSystemService(UiModeManager.class);
+                int nightMode = uiModeManager != null
+                        ? uiModeManager.getNightMode() : UiModeManager.MODE_NIGHT_NO;
+                Map<String, Boolean> last = mLastOverlays;
+                int lastNightMode = mLastNightMode;
+                mLastOverlays = overlays;
+                mLastNightMode = nightMode;
+                if (last == null) {
+                    return;
+                }
+                boolean themeChanged = nightMode != lastNightMode;
+                // The snapshot is only replaced when an overlay changed
+                if (last != overlays) {
+                    for (Map.Entry<String, Boolean> overlay : overlays.entrySet()) {
+                        String packageName = overlay.getKey();
+                        Boolean enabled = overlay.getValue();
+                        if (enabled.equals(last.get(packageName))) {
+                            continue;
+                        }
+                        Slot slot = INDEX.get(packageName);
+                        if (slot != null) {
+                            Integer position = categories.get(slot.category);
+                            if (enabled && (position == null || slot.position > position)) {
+                                categories.put(slot.category, slot.position);
+                            } else if (position == null) {
+                                // Only a disable, whatever is left enabled wins
+                                categories.put(slot.category,
+                                        state.getPosition(slot.category.getOverlays()));
+                            }
+                        } else if (ThemePlan.isBackground(packageName)) {
+                            themeChanged = true;
+                        }
+                    }
+                }
+                if (themeChanged) {
+                    theme[0] = ThemePlan.match(state, nightMode);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (!mStarted) {
+                    return;
+                }
+                for (int i = 0; i < categories.size(); i++) {
+                    mListener.onCategoryChanged(categories.keyAt(i), categories.valueAt(i));
+                }
+                if (theme[0] != null) {
+                    mListener.onThemeChanged(theme[0]);
+                }
+            }
+        });
+    }
+
+    private final BroadcastReceiver mOverlayReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int userId = getSendingUserId();
+            if (userId == UserHandle.USER_ALL) {
+                OverlayState.invalidate();
+            } else if (userId == ActivityManager.getCurrentUser()) {
+                // Don't depend on the order the snapshot receiver runs in
+                OverlayState.invalidate(userId);
+            } else {
+                return;
+            }
+            checkOverlays();
+        }
+    };
+
+    private final ContentObserver mSettingsObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            checkSettings();
+        }
+    };
+
+    private final ContentObserver mNightModeObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            checkOverlays();
+        }
+    };
+
+    private static final class Slot {
+        final OverlayCategory category;
+        final int position;
+
+        Slot(OverlayCategory category, int position) {
+            this.category = category;
+            this.position = position;
+        }
+    }
+}
@@ -16,51 +16,30 @@
 
 package com.dirtyunicorns.themes.utils;
 
-import static android.content.Context.ALARM_SERVICE;
-import static android.os.UserHandle.USER_SYSTEM;
 import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULE;
 import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_THEME;
 import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_THEME_VALUE;
 import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_TIME;
-import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_REPEAT_DAILY;
 import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_THEME;
 import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_THEME_VALUE;
 import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_TIME;
-import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_START_TIME;
-import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_END_TIME;
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_SWITCH;
 
 import android.app.Activity;
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.app.UiModeManager;
 import android.app.WallpaperInfo;
 import android.app.WallpaperManager;
-import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.om.IOverlayManager;
-import android.content.pm.PackageManager;
-import android.os.RemoteException;
+import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.widget.Button;
 
-import androidx.preference.PreferenceManager;
-
-import com.android.internal.util.du.ThemesUtils;
-
-import com.dirtyunicorns.themes.R;
-import com.dirtyunicorns.themes.receivers.ThemesEndReceiver;
-import com.dirtyunicorns.themes.receivers.ThemesStartReceiver;
-
-import java.util.Calendar;
-import java.util.Objects;
-
 public class Utils {
 
-    private static long mAlarmEndTime;
-    private static long mAlarmStartTime;
+    private static final ArraySet<String> sMovedPreferences = new ArraySet<>();
 
     public static boolean isLiveWallpaper(Context context) {
         WallpaperInfo info = WallpaperManager.getInstance(context).getWallpaperInfo();
@@ -88,36 +67,8 @@ public class Utils {
 
     public static String getScheduledStartThemeSummary(SharedPreferences mSharedPreferences, Context context) {
         String scheduledStartThemeSummary = mSharedPreferences.getString(PREF_THEME_SCHEDULED_START_THEME, null);
-
-        if (scheduledStartThemeSummary != null) {
-            switch (scheduledStartThemeSummary) {
-                case "1":
-                    scheduledStartThemeSummary = context.getString(R.string.theme_type_light);
-                    break;
-                case "2":
-                    scheduledStartThemeSummary = context.getString(R.string.theme_type_google_dark);
-                    break;
-                case "3":
-                    scheduledStartThemeSummary = context.getString(R.string.theme_type_pitch_black);
-                    break;
-                case "4":
-                    scheduledStartThemeSummary = context.getString(R.string.theme_type_solarized_dark);
-                    break;
-                case "5":
-                    scheduledStartThemeSummary = context.getString(R.string.theme_type_choco_x);
-                    break;
-                case "6":
-                    scheduledStartThemeSummary = context.getString(R.string.theme_type_baked_green);
-                    break;
-                case "7":
-                    scheduledStartThemeSummary = context.getString(R.string.theme_type_dark_grey);
-                    break;
-                case "8":
-                    scheduledStartThemeSummary = context.getString(R.string.theme_type_material_ocean);
-                    break;
-            }
-        }
-        return scheduledStartThemeSummary;
+        ThemePlan plan = ThemePlan.get(scheduledStartThemeSummary);
+        return plan != null ? plan.getLabel(context) : scheduledStartThemeSummary;
     }
 
     public static String getScheduledEndTheme(SharedPreferences mSharedPreferences) {
@@ -134,137 +85,57 @@ public class Utils {
 
     public static String getScheduledEndThemeSummary(SharedPreferences mSharedPreferences, Context context) {
         String scheduledEndThemeSummary = mSharedPreferences.getString(PREF_THEME_SCHEDULED_END_THEME, null);
-        if (scheduledEndThemeSummary != null) {
-            switch (scheduledEndThemeSummary) {
-                case "1":
-                    scheduledEndThemeSummary = context.getString(R.string.theme_type_light);
-                    break;
-                case "2":
-                    scheduledEndThemeSummary = context.getString(R.string.theme_type_google_dark);
-                    break;
-                case "3":
-                    scheduledEndThemeSummary = context.getString(R.string.theme_type_pitch_black);
-                    break;
-                case "4":
-                    scheduledEndThemeSummary = context.getString(R.string.theme_type_solarized_dark);
-                    break;
-                case "5":
-                    scheduledEndThemeSummary = context.getString(R.string.theme_type_choco_x);
-                    break;
-                case "6":
-                    scheduledEndThemeSummary = context.getString(R.string.theme_type_baked_green);
-                    break;
-                case "7":
-                    scheduledEndThemeSummary = context.getString(R.string.theme_type_dark_grey);
-                    break;
-            }
-        }
-        return scheduledEndThemeSummary;
-    }
-
-    public static void handleOverlays(String packagename, Boolean state, IOverlayManager mOverlayManager) {
-        try {
-            mOverlayManager.setEnabled(packagename, state, USER_SYSTEM);
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public static void handleBackgrounds(Boolean state, Context context, int mode, String[] overlays, IOverlayManager mOverlayManager) {
-        if (context != null) {
-            Objects.requireNonNull(context.getSystemService(UiModeManager.class))
-                    .setNightMode(mode);
-        }
-        for (int i = 0; i < overlays.length; i++) {
-            String background = overlays[i];
-            try {
-                mOverlayManager.setEnabled(background, state, USER_SYSTEM);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    public static void setEndAlarm(Context context) {
-        AlarmManager mAlarmMgr = (AlarmManager) context.getSystemService(ALARM_SERVICE);
-        Intent mEndIntent = new Intent(context, ThemesEndReceiver.class);
-        PendingIntent mEndPendingIntent = PendingIntent.getBroadcast(context, 0, mEndIntent, 0);
-        if (!PreferenceManager.getDefaultSharedPreferences(context)
-                .getBoolean(PREF_THEME_SCHEDULED_REPEAT_DAILY, false)) {
-            if (mAlarmMgr != null) {
-                mAlarmMgr.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, getEndTime(context),
-                        mEndPendingIntent);
+        ThemePlan plan = ThemePlan.get(scheduledEndThemeSummary);
+        return plan != null ? plan.getLabel(context) : scheduledEndThemeSummary;
+    }
+
+    public static void setTheme(Context context, ThemePlan plan,
+            IOverlayManager mOverlayManager, long generation) {
+        plan.applyTo(new OverlayTransaction(mOverlayManager)
+                .setGeneration(PREF_THEME_SWITCH, generation)
+                .setUsers(ThemeUsers.getTargets(context)))
+                .commit(context);
+    }
+
+    /**
+     * Stamps a theme change and hands it to the apply queue, a newer
+     * change from any other writer supersedes it.
+     */
+    public static void queueTheme(Context context, final ThemePlan plan,
+            final IOverlayManager mOverlayManager) {
+        final Context appContext = context.getApplicationContext();
+        final long generation = ThemeArbiter.stamp(PREF_THEME_SWITCH);
+        OverlayApplyQueue.get().enqueue(PREF_THEME_SWITCH, new Runnable() {
+            @Override
+            public void run() {
+                setTheme(appContext, plan, mOverlayManager, generation);
             }
-        } else {
-            if (mAlarmMgr != null) {
-                mAlarmMgr.setRepeating(AlarmManager.RTC_WAKEUP, getEndTime(context),
-                        AlarmManager.INTERVAL_DAY, mEndPendingIntent);
+        });
+    }
+
+    /**
+     * Whether credential encrypted storage, and with it the default shared
+     * preferences, can be read yet.
+     */
+    public static boolean isUserUnlocked(Context context) {
+        UserManager userManager = context.getSystemService(UserManager.class);
+        return userManager == null || userManager.isUserUnlocked();
+    }
+
+    /**
+     * Returns preferences kept in device protected storage, so they can be
+     * read before the user unlocks. A file left in credential encrypted
+     * storage by an older version is moved over on the first unlocked call.
+     */
+    public static SharedPreferences getDeviceProtectedPreferences(Context context, String name) {
+        Context storage = context.createDeviceProtectedStorageContext();
+        synchronized (sMovedPreferences) {
+            if (!sMovedPreferences.contains(name) && isUserUnlocked(context)) {
+                storage.moveSharedPreferencesFrom(context, name);
+                sMovedPreferences.add(name);
             }
         }
-    }
-
-    public static void setStartAlarm(Context context) {
-        AlarmManager mAlarmMgr = (AlarmManager) context.getSystemService(ALARM_SERVICE);
-        Intent mStartIntent = new Intent(context, ThemesStartReceiver.class);
-        PendingIntent mStartPendingIntent = PendingIntent.getBroadcast(context, 0, mStartIntent, 0);
-        if (!PreferenceManager.getDefaultSharedPreferences(context)
-                .getBoolean(PREF_THEME_SCHEDULED_REPEAT_DAILY, false)) {
-            if (mAlarmMgr != null) {
-                mAlarmMgr.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, getStartTime(context),
-                        mStartPendingIntent);
-            }
-        } else {
-            if (mAlarmMgr != null) {
-                mAlarmMgr.setRepeating(AlarmManager.RTC_WAKEUP, getStartTime(context),
-                        AlarmManager.INTERVAL_DAY, mStartPendingIntent);
-            }
-        }
-    }
-
-    private static long getEndTime(Context context) {
-        SharedPreferences mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        mAlarmEndTime = mSharedPreferences.getLong(PREF_ALARM_END_TIME, 0);
-        return mAlarmEndTime;
-    }
-
-    public static void setEndTime(Context context, Calendar endTime) {
-        SharedPreferences mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        SharedPreferences.Editor sharedPreferencesEditor = mSharedPreferences.edit();
-        mAlarmEndTime = endTime.getTimeInMillis();
-        sharedPreferencesEditor.putLong(PREF_ALARM_END_TIME, mAlarmEndTime);
-        sharedPreferencesEditor.apply();
-    }
-
-    private static long getStartTime(Context context) {
-        SharedPreferences mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        mAlarmStartTime = mSharedPreferences.getLong(PREF_ALARM_START_TIME, 0);
-        return mAlarmStartTime;
-    }
-
-    public static void setStartTime(Context context, Calendar startTime) {
-        SharedPreferences mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        SharedPreferences.Editor sharedPreferencesEditor = mSharedPreferences.edit();
-        mAlarmStartTime = startTime.getTimeInMillis();
-        sharedPreferencesEditor.putLong(PREF_ALARM_START_TIME, mAlarmStartTime);
-        sharedPreferencesEditor.apply();
-    }
-
-    public static void clearAlarms(Context context) {
-        ComponentName endReceiver = new ComponentName(context, ThemesEndReceiver.class);
-        ComponentName startReceiver = new ComponentName(context, ThemesStartReceiver.class);
-        PackageManager pm = context.getPackageManager();
-        pm.setComponentEnabledSetting(endReceiver,PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
-                PackageManager.DONT_KILL_APP);
-        pm.setComponentEnabledSetting(startReceiver,PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
-                PackageManager.DONT_KILL_APP);
-        Intent endIntent = new Intent(context, ThemesEndReceiver.class);
-        Intent startIntent = new Intent(context, ThemesStartReceiver.class);
-        PendingIntent endPendingIntent = PendingIntent.getBroadcast(context, 0, endIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-        PendingIntent startPendingIntent = PendingIntent.getBroadcast(context, 0, startIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-        AlarmManager am = (AlarmManager) context.getSystemService(ALARM_SERVICE);
-        assert am != null;
-        am.cancel(endPendingIntent);
-        am.cancel(startPendingIntent);
+        return storage.getSharedPreferences(name, Context.MODE_PRIVATE);
     }
 
     public static boolean threeButtonNavbarEnabled(Context context) {
@@ -273,7 +144,7 @@ public class Utils {
         boolean navigationBar = Settings.System.getInt(context.getContentResolver(),
                 Settings.System.FORCE_SHOW_NAVBAR, defaultToNavigationBar ? 1 : 0) == 1;
         boolean hasNavbar = false;
-        hasNavbar = com.android.internal.util.du.Utils.isThemeEnabled(
+        hasNavbar = OverlayState.get(context).isEnabled(
                 "com.android.internal.systemui.navbar.threebutton") && navigationBar;
         return hasNavbar;
     }